@@ -0,0 +1,48 @@
+package lu.intrasoft.jspwiki.plugin;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.ecyrd.jspwiki.WikiContext;
+import com.ecyrd.jspwiki.WikiEngine;
+import com.ecyrd.jspwiki.WikiPage;
+
+/**
+ *  BenchContext.java
+ *
+ *  BenchContext stands in for the WikiContext of one page view in the
+ *  offline tools: it holds the page's variables, as the plugin reads and
+ *  sets them (the text mode, the compact style sheets already on the
+ *  page).  Building a real context needs a running WikiEngine, so the
+ *  stand-in has no engine and no page, and sources named by 'src' are
+ *  not exercised.
+ */
+
+class BenchContext
+    extends WikiContext
+{
+    private final Map variables = new HashMap();
+
+    BenchContext()
+    {
+        super ( (WikiEngine)null, (WikiPage)null);
+    }
+
+    public WikiEngine
+    getEngine()
+    {
+        return null;
+    }
+
+    public Object
+    getVariable ( String name)
+    {
+        return variables.get ( name);
+    }
+
+    public void
+    setVariable ( String name, Object value)
+    {
+        variables.put ( name, value);
+    }
+}
@@ -0,0 +1,187 @@
+package lu.intrasoft.jspwiki.plugin;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ *  BenchCorpus.java
+ *
+ *  BenchCorpus provides the code samples used by the benchmarks, and
+ *  builds wiki-page-like workloads from them: each page is a list of
+ *  plugin parameter maps (<code>syntax</code> and <code>_body</code>),
+ *  one per code block, of mixed syntaxes and sizes.
+ *
+ *  A directory of real source files may be used instead of the built-in
+ *  samples; the syntax of each file is taken from its extension
+ *  (.c, .h, .java, .sql, .vm).
+ */
+
+public class BenchCorpus
+{
+    static final String[][] samples = {
+        { "c",
+          "#include <stdio.h>\n" +
+          "static int count_lines ( const char *text)\n" +
+          "{\n" +
+          "    int lines = 0;\n" +
+          "    while ( *text != 0)\n" +
+          "    {\n" +
+          "        if ( *text++ == '\\n') lines++;\n" +
+          "    }\n" +
+          "    return lines;\n" +
+          "}\n" },
+        { "java",
+          "public class LineCounter extends Object implements Runnable\n" +
+          "{\n" +
+          "    private final String text;\n" +
+          "    public void run()\n" +
+          "    {\n" +
+          "        int lines = 0;\n" +
+          "        for ( int i = 0; i < text.length(); i++)\n" +
+          "        {\n" +
+          "            if ( text.charAt ( i) == '\\n') lines++;\n" +
+          "        }\n" +
+          "        synchronized ( this) { notifyAll(); }\n" +
+          "    }\n" +
+          "}\n" },
+        { "sql",
+          "SELECT p.name, COUNT(*) AS edits\n" +
+          "  FROM pages p\n" +
+          "  JOIN changes c ON c.page_id = p.id\n" +
+          " WHERE c.changed > SYSDATE - 7\n" +
+          " GROUP BY p.name\n" +
+          " ORDER BY edits DESC;\n" +
+          "UPDATE pages SET hits = 0 WHERE hits IS NULL;\n" },
+        { "vm",
+          "#foreach( $page in $pages )\n" +
+          "  <tr><td>$page.name</td>\n" +
+          "  #if( $page.hits > 100 )<td><b>${page.hits}</b></td>#else<td>$page.hits</td>#end\n" +
+          "  </tr>\n" +
+          "#end\n" },
+    };
+
+    /**
+     * Load code blocks from a directory, or use the built-in samples
+     *
+     * @param directory source files to use, or null
+     * @return an array of { syntax, body } pairs
+     * @throws IOException if a file cannot be read
+     */
+    static String[][]
+    load_blocks ( String directory)
+        throws IOException
+    {
+        if ( directory == null)
+        {
+            return samples;
+        }
+        List result = new ArrayList();
+        File[] files = new File ( directory).listFiles();
+        for ( int i = 0; files != null && i < files.length; i++)
+        {
+            String syntax = syntax_of ( files[i].getName());
+            if ( syntax != null && files[i].isFile())
+            {
+                result.add ( new String[] { syntax, read ( files[i]) });
+            }
+        }
+        if ( result.isEmpty())
+        {
+            throw new IOException ( "No .c, .h, .java, .sql or .vm files in " + directory);
+        }
+        return (String[][])result.toArray ( new String[result.size()][]);
+    }
+
+    /**
+     * Build a set of pages, each with up to <code>max_blocks</code> code
+     * blocks picked at random, each block one to <code>max_repeat</code>
+     * copies of a sample
+     *
+     * @return a list of pages, each a list of plugin parameter Maps
+     */
+    static List
+    make_pages ( String[][] blocks, int page_count, int max_blocks, int max_repeat, long seed)
+    {
+        Random random = new Random ( seed);
+        List pages = new ArrayList ( page_count);
+        for ( int p = 0; p < page_count; p++)
+        {
+            int block_count = 1 + random.nextInt ( max_blocks);
+            List page = new ArrayList ( block_count);
+            for ( int b = 0; b < block_count; b++)
+            {
+                String[] block = blocks[random.nextInt ( blocks.length)];
+                Map params = new HashMap();
+                params.put ( "syntax", block[0]);
+                params.put ( "_body", repeat ( block[1], 1 + random.nextInt ( max_repeat)));
+                page.add ( params);
+            }
+            pages.add ( page);
+        }
+        return pages;
+    }
+
+    static String
+    repeat ( String text, int count)
+    {
+        StringBuffer result = new StringBuffer ( text.length() * count);
+        for ( int i = 0; i < count; i++)
+        {
+            result.append ( text);
+        }
+        return result.toString();
+    }
+
+    private static String
+    syntax_of ( String file_name)
+    {
+        String name = file_name.toLowerCase();
+        if ( name.endsWith ( ".c") || name.endsWith ( ".h"))
+        {
+            return "c";
+        }
+        if ( name.endsWith ( ".java"))
+        {
+            return "java";
+        }
+        if ( name.endsWith ( ".sql"))
+        {
+            return "sql";
+        }
+        if ( name.endsWith ( ".vm"))
+        {
+            return "vm";
+        }
+        return null;
+    }
+
+    private static String
+    read ( File file)
+        throws IOException
+    {
+        Reader reader = new InputStreamReader ( new FileInputStream ( file), "UTF-8");
+        try
+        {
+            StringBuffer result = new StringBuffer ( (int)file.length());
+            char[] buffer = new char[8192];
+            int count;
+            while ( ( count = reader.read ( buffer)) > 0)
+            {
+                result.append ( buffer, 0, count);
+            }
+            return result.toString();
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package lu.intrasoft.jspwiki.plugin;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.ecyrd.jspwiki.WikiContext;
+
+/**
+ *  CompactCheck.java
+ *
+ *  CompactCheck renders blocks of two syntaxes in compact form on one
+ *  page, as JSPWiki would, and verifies that each style sheet can only
+ *  color the blocks of its own syntax: every rule must be scoped to the
+ *  <code>pre</code> elements of the sheet's class.  It also checks that
+ *  the script and each style sheet are included once in the page.  Exits
+ *  with status 1 if a check fails.
+ *  <pre>
+ *  ant compact-check
+ *  </pre>
+ */
+
+public class CompactCheck
+{
+    private static final String[][] blocks = {
+        { "java", "public class Page { String name = \"Main\"; }\n" },
+        { "sql", "SELECT name FROM pages WHERE hits > 100;\n" },
+        { "java", "int count = 0; // again, after the sql block\n" },
+    };
+    private static int failures = 0;
+
+    public static void
+    main ( String[] args)
+        throws Exception
+    {
+        ColorCodePlugin plugin = new ColorCodePlugin();
+        WikiContext context = new BenchContext();
+        StringBuffer page = new StringBuffer();
+        List ids = new ArrayList();
+        for ( int i = 0; i < blocks.length; i++)
+        {
+            Map params = new HashMap();
+            params.put ( "syntax", blocks[i][0]);
+            params.put ( "output", ColorCodeCompact.COMPACT);
+            params.put ( "_body", blocks[i][1]);
+            String fragment = plugin.execute ( context, params);
+            ids.add ( between ( fragment, "<pre class=\"colorcode-compact ", "\""));
+            page.append ( fragment);
+        }
+        String html = page.toString();
+
+        check ( "the two syntaxes have their own style sheets", ids.get ( 0).equals ( ids.get ( 1)) == false);
+        check ( "blocks of one syntax share a style sheet", ids.get ( 0).equals ( ids.get ( 2)));
+        check ( "the script is included once", count ( html, "<script") == 1);
+        check ( "each style sheet is included once", count ( html, "<style") == 2);
+
+        int scoped = 0;
+        int unscoped = 0;
+        int start = 0;
+        while ( ( start = html.indexOf ( "<style type=\"text/css\">", start)) >= 0)
+        {
+            String sheet = between ( html.substring ( start), ">", "</style>");
+            String id = between ( sheet, "pre.", "{");
+            check ( "style sheet " + id + " is for a block on the page", ids.contains ( id));
+            String[] rules = sheet.split ( "\\}");
+            for ( int i = 0; i < rules.length; i++)
+            {
+                String selector = rules[i].substring ( 0, rules[i].indexOf ( '{')).trim();
+                if ( selector.equals ( "pre." + id) || selector.startsWith ( "pre." + id + " "))
+                {
+                    scoped++;
+                }
+                else
+                {
+                    System.out.println ( "unscoped rule: " + rules[i] + "}");
+                    unscoped++;
+                }
+            }
+            start++;
+        }
+        check ( "all " + scoped + " rules are scoped to their syntax's blocks", unscoped == 0 && scoped > 0);
+
+        if ( failures > 0)
+        {
+            System.exit ( 1);
+        }
+    }
+
+    private static void
+    check ( String description, boolean passed)
+    {
+        System.out.println ( ( passed ? "ok:     " : "FAILED: ") + description);
+        if ( passed == false)
+        {
+            failures++;
+        }
+    }
+
+    private static String
+    between ( String text, String before, String after)
+    {
+        int start = text.indexOf ( before) + before.length();
+        return text.substring ( start, text.indexOf ( after, start));
+    }
+
+    private static int
+    count ( String text, String part)
+    {
+        int result = 0;
+        for ( int i = text.indexOf ( part); i >= 0; i = text.indexOf ( part, i + 1))
+        {
+            result++;
+        }
+        return result;
+    }
+}
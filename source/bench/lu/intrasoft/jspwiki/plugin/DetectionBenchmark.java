@@ -0,0 +1,88 @@
+package lu.intrasoft.jspwiki.plugin;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *  DetectionBenchmark.java
+ *
+ *  DetectionBenchmark compares the cost of syntax auto-detection
+ *  (<code>syntax='auto'</code>) with the cost of the render itself, for
+ *  a code sample of each of the bundled syntaxes.  Detection results are
+ *  normally cached by body hash; every iteration here uses a distinct body
+ *  so that the uncached cost is measured.
+ *
+ *  Run with the syntax resources on the classpath:
+ *  <pre>
+ *  ant bench
+ *  </pre>
+ */
+
+public class DetectionBenchmark
+{
+    public static void
+    main ( String[] args)
+    {
+        int iterations = args.length > 0 ? Integer.parseInt ( args[0]) : 20000;
+        for ( int s = 0; s < BenchCorpus.samples.length; s++)
+        {
+            String name = BenchCorpus.samples[s][0];
+            String body = BenchCorpus.repeat ( BenchCorpus.samples[s][1], 8);
+
+            Map params = new HashMap();
+            params.put ( "syntax", name);
+            long render_ns = time_render ( body, params, iterations);
+
+            Map auto_params = new HashMap();
+            auto_params.put ( "syntax", ColorCodeDetector.AUTO);
+            long detect_ns = time_detect ( body, auto_params, iterations);
+
+            System.out.println ( name + ": detected=" + ColorCodeDetector.detect ( body, auto_params)
+                                 + " render=" + render_ns + "ns detect=" + detect_ns + "ns ("
+                                 + ( 100 * detect_ns / Math.max ( 1, render_ns)) + "% of render)");
+        }
+    }
+
+    private static long
+    time_render ( String body, Map params, int iterations)
+    {
+        int sink = 0;
+        for ( int i = 0; i < iterations / 4; i++) // warm-up
+        {
+            sink += new ColorCodeHTML().format ( body, params).length();
+        }
+        long started = System.nanoTime();
+        for ( int i = 0; i < iterations; i++)
+        {
+            sink += new ColorCodeHTML().format ( body, params).length();
+        }
+        long elapsed = System.nanoTime() - started;
+        if ( sink == 42) System.out.print ( "");
+        return elapsed / iterations;
+    }
+
+    private static long
+    time_detect ( String body, Map params, int iterations)
+    {
+        String[] bodies = new String[iterations];
+        for ( int i = 0; i < iterations; i++)
+        {
+            bodies[i] = "// " + i + "\n" + body; // distinct prefixes defeat the result cache
+        }
+        int sink = 0;
+        for ( int i = 0; i < iterations / 4; i++)
+        {
+            String detected = ColorCodeDetector.detect ( bodies[i], params);
+            sink += detected == null ? 0 : detected.length();
+        }
+        long started = System.nanoTime();
+        for ( int i = 0; i < iterations; i++)
+        {
+            String detected = ColorCodeDetector.detect ( bodies[i], params);
+            sink += detected == null ? 0 : detected.length();
+        }
+        long elapsed = System.nanoTime() - started;
+        if ( sink == 42) System.out.print ( "");
+        return elapsed / iterations;
+    }
+}
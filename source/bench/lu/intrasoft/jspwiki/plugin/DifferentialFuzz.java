@@ -0,0 +1,224 @@
+package lu.intrasoft.jspwiki.plugin;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ *  DifferentialFuzz.java
+ *
+ *  DifferentialFuzz feeds corpus and random inputs through both the
+ *  current engine (ColorCodeHTML) and the reference engine
+ *  (ColorCodeLegacyHTML), for the default syntax and every sample
+ *  syntax, and reports every input whose normalised output differs,
+ *  shrunk to a small reproducing case.  Exits with status 1 if any
+ *  mismatch was found.
+ *
+ *  Options, all as <code>name=value</code>: iterations (default 2000 per
+ *  syntax), seed, corpus (a directory of source files, see BenchCorpus),
+ *  unicode ('true' to compare with the Unicode word splitting of
+ *  SyntaxTokenizer turned on, which deliberately differs from the
+ *  reference for non-ASCII symbols; off by default).
+ *  <pre>
+ *  ant fuzz -Dfuzz.args="iterations=20000"
+ *  </pre>
+ */
+
+public class DifferentialFuzz
+{
+    private static final String[] syntaxes = { null, "c", "java", "sql", "vm" };
+
+    private static final String[] fragments = {
+        " ", "  ", "\t", "\n", "\r\n", "'", "\"", "<", ">", "&", "$", "#", "_", "/", "*", "{", "}",
+        "(", ")", ";", ",", ".", "-", "0", "42", "3.5", "0x1F", "${name}", "$var", "<b>", "</tr>",
+        "select", "SELECT", "from", "int", "class", "public", "foreach", "end", "Foo", "x",
+        "été", "日本", "──", " ",
+    };
+
+    private static final int max_reported = 10;
+
+    private final String unicode;
+    private int checked;
+    private int mismatches;
+    private int reference_failures;
+
+    public static void
+    main ( String[] args)
+        throws Exception
+    {
+        Map options = new HashMap();
+        for ( int i = 0; i < args.length; i++)
+        {
+            int equals = args[i].indexOf ( '=');
+            if ( equals > 0)
+            {
+                options.put ( args[i].substring ( 0, equals), args[i].substring ( equals + 1));
+            }
+        }
+        int iterations = options.containsKey ( "iterations") ? Integer.parseInt ( (String)options.get ( "iterations")) : 2000;
+        long seed = options.containsKey ( "seed") ? Long.parseLong ( (String)options.get ( "seed")) : 1;
+        String[][] corpus = BenchCorpus.load_blocks ( (String)options.get ( "corpus"));
+
+        DifferentialFuzz fuzz = new DifferentialFuzz ( Boolean.valueOf ( (String)options.get ( "unicode")).toString());
+        Random random = new Random ( seed);
+        for ( int s = 0; s < syntaxes.length; s++)
+        {
+            for ( int c = 0; c < corpus.length; c++)
+            {
+                fuzz.check ( syntaxes[s], corpus[c][1]);
+            }
+            for ( int i = 0; i < iterations; i++)
+            {
+                fuzz.check ( syntaxes[s], random_body ( random));
+            }
+        }
+        System.out.println ( "checked " + fuzz.checked + " inputs: " + fuzz.mismatches + " mismatches, "
+                             + fuzz.reference_failures + " inputs the reference engine failed on");
+        if ( fuzz.mismatches > 0)
+        {
+            System.exit ( 1);
+        }
+    }
+
+    private DifferentialFuzz ( String unicode)
+    {
+        this.unicode = unicode;
+    }
+
+    private void
+    check ( String syntax, String body)
+    {
+        checked++;
+        Map params = new HashMap();
+        if ( syntax != null)
+        {
+            params.put ( "syntax", syntax);
+        }
+        params.put ( "tokenizer.unicode", unicode);
+        int result = compare ( body, params);
+        if ( result == 0)
+        {
+            return;
+        }
+        if ( result < 0)
+        {
+            reference_failures++;
+            return;
+        }
+        mismatches++;
+        if ( mismatches <= max_reported)
+        {
+            String small = shrink ( body, params);
+            String current = ColorCodeShadow.normalize ( new ColorCodeHTML().format ( small, params));
+            String reference = ColorCodeShadow.normalize ( new ColorCodeLegacyHTML().format ( small, params));
+            int at = ColorCodeShadow.first_difference ( current, reference);
+            System.out.println ( "MISMATCH syntax=" + syntax + " input=" + quote ( small));
+            System.out.println ( "  current:   ..." + quote ( excerpt ( current, at)));
+            System.out.println ( "  reference: ..." + quote ( excerpt ( reference, at)));
+        }
+    }
+
+    /**
+     * @return 0 if the engines agree, 1 if they differ, -1 if the reference failed
+     */
+    private static int
+    compare ( String body, Map params)
+    {
+        String reference;
+        try
+        {
+            reference = new ColorCodeLegacyHTML().format ( body, params);
+        }
+        catch ( RuntimeException rex)
+        {
+            return -1;
+        }
+        String current = new ColorCodeHTML().format ( body, params);
+        return ColorCodeShadow.first_difference ( ColorCodeShadow.normalize ( current),
+                                                  ColorCodeShadow.normalize ( reference)) < 0 ? 0 : 1;
+    }
+
+    /**
+     * Remove pieces of a mismatching input for as long as it keeps mismatching
+     */
+    private static String
+    shrink ( String body, Map params)
+    {
+        String best = body;
+        for ( int chunk = Math.max ( 1, best.length() / 2); chunk >= 1; chunk /= 2)
+        {
+            int start = 0;
+            while ( start < best.length())
+            {
+                String candidate = best.substring ( 0, start) + best.substring ( Math.min ( best.length(), start + chunk));
+                if ( candidate.length() > 0 && compare ( candidate, params) == 1)
+                {
+                    best = candidate;
+                }
+                else
+                {
+                    start += chunk;
+                }
+            }
+        }
+        return best;
+    }
+
+    private static String
+    random_body ( Random random)
+    {
+        StringBuffer result = new StringBuffer();
+        int count = 1 + random.nextInt ( 40);
+        for ( int i = 0; i < count; i++)
+        {
+            if ( random.nextInt ( 8) == 0)
+            {
+                result.append ( (char)( 0x20 + random.nextInt ( 0x5f)));
+            }
+            else
+            {
+                result.append ( fragments[random.nextInt ( fragments.length)]);
+            }
+        }
+        return result.toString();
+    }
+
+    private static String
+    excerpt ( String text, int at)
+    {
+        int from = Math.max ( 0, at - 40);
+        return text.substring ( from, Math.min ( text.length(), at + 40));
+    }
+
+    private static String
+    quote ( String text)
+    {
+        StringBuffer result = new StringBuffer ( "\"");
+        for ( int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt ( i);
+            if ( c == '\n')
+            {
+                result.append ( "\\n");
+            }
+            else if ( c == '\r')
+            {
+                result.append ( "\\r");
+            }
+            else if ( c == '\t')
+            {
+                result.append ( "\\t");
+            }
+            else if ( c < 0x20 || c > 0x7e)
+            {
+                String hex = Integer.toHexString ( c);
+                result.append ( "\\u0000".substring ( 0, 6 - hex.length())).append ( hex);
+            }
+            else
+            {
+                result.append ( c);
+            }
+        }
+        return result.append ( '"').toString();
+    }
+}
@@ -0,0 +1,82 @@
+package lu.intrasoft.jspwiki.plugin;
+
+/**
+ *  EscapeBenchmark.java
+ *
+ *  EscapeBenchmark compares the single-pass HTML escaping of
+ *  ColorCodeEscape with the indexOf and replaceAll calls it replaced in
+ *  ColorCodeHTML.render_token (extended to '&amp;' so both produce the same
+ *  text), over the tokens of the code samples.
+ *
+ *  Run with:
+ *  <pre>
+ *  ant bench
+ *  </pre>
+ */
+
+public class EscapeBenchmark
+{
+    public static void
+    main ( String[] args)
+    {
+        int iterations = args.length > 0 ? Integer.parseInt ( args[0]) : 2000;
+        for ( int s = 0; s < BenchCorpus.samples.length; s++)
+        {
+            String name = BenchCorpus.samples[s][0];
+            String[] tokens = BenchCorpus.repeat ( BenchCorpus.samples[s][1], 8).split ( "\\s+");
+            int chars = 0;
+            for ( int i = 0; i < tokens.length; i++)
+            {
+                chars += tokens[i].length();
+                if ( ColorCodeEscape.escape ( tokens[i]).equals ( replace_all ( tokens[i])) == false)
+                {
+                    throw new IllegalStateException ( "escaping differs for " + tokens[i]);
+                }
+            }
+            long replace_ns = time ( tokens, iterations, false);
+            long escape_ns = time ( tokens, iterations, true);
+            System.out.println ( name + ": " + tokens.length + " tokens, replaceAll="
+                                 + ( replace_ns * 1000 / chars) + "ps/char single-pass="
+                                 + ( escape_ns * 1000 / chars) + "ps/char");
+        }
+    }
+
+    private static long
+    time ( String[] tokens, int iterations, boolean single_pass)
+    {
+        int sink = 0;
+        long started = 0;
+        for ( int i = -iterations / 4; i < iterations; i++) // the first quarter warms up
+        {
+            if ( i == 0)
+            {
+                started = System.nanoTime();
+            }
+            for ( int t = 0; t < tokens.length; t++)
+            {
+                sink += ( single_pass ? ColorCodeEscape.escape ( tokens[t]) : replace_all ( tokens[t])).length();
+            }
+        }
+        long elapsed = System.nanoTime() - started;
+        if ( sink == 42) System.out.print ( "");
+        return elapsed / iterations;
+    }
+
+    private static String
+    replace_all ( String value)
+    {
+        if ( value.indexOf ( "&") >= 0)
+        {
+            value = value.replaceAll ( "&", "&amp;");
+        }
+        if ( value.indexOf ( "<") >= 0)
+        {
+            value = value.replaceAll ( "<", "&lt;");
+        }
+        if ( value.indexOf ( ">") >= 0)
+        {
+            value = value.replaceAll ( ">", "&gt;");
+        }
+        return value;
+    }
+}
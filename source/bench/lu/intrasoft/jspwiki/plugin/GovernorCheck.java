@@ -0,0 +1,126 @@
+package lu.intrasoft.jspwiki.plugin;
+
+import java.util.Map;
+
+/**
+ *  GovernorCheck.java
+ *
+ *  GovernorCheck verifies ColorCodeGovernor's accounting across request
+ *  thread turnover: many short-lived threads each pool a large output
+ *  buffer and end.  Once they have ended, no pooled buffer may still be
+ *  reported, and the fragment cache must have kept its entries, since
+ *  the buffers do not count toward the memory budget.  Exits with status
+ *  1 if a check fails.
+ *  <pre>
+ *  ant governor-check
+ *  </pre>
+ */
+
+public class GovernorCheck
+{
+    private static final int threads = 200;
+    private static final int fragments = 16;
+    private static int failures = 0;
+
+    public static void
+    main ( String[] args)
+        throws Exception
+    {
+        StringBuffer text = new StringBuffer();
+        for ( int i = 0; i < 160 * 1024; i++)
+        {
+            text.append ( "x = é;\n".charAt ( i % 7));
+        }
+        final String large = text.toString(); // grows a pooled buffer to about 480K
+
+        for ( int i = 0; i < fragments; i++)
+        {
+            ColorCodeCache.FRAGMENTS.put ( "governor-check:" + i, large);
+        }
+        int entries = cache_entries();
+
+        Runnable render = new Runnable()
+        {
+            public void run()
+            {
+                ColorCodeUtf8Output output = ColorCodeUtf8Output.acquire();
+                output.append ( large);
+                output.release();
+            }
+        };
+        Thread holder = new Thread ( render);
+        holder.start();
+        holder.join();
+        check ( "an ended thread's buffer is not reported", footprint ( "buffers") == 0);
+
+        final Object lock = new Object();
+        Thread live = new Thread ( new Runnable()
+        {
+            public void run()
+            {
+                ColorCodeUtf8Output output = ColorCodeUtf8Output.acquire();
+                output.append ( large);
+                output.release();
+                synchronized ( lock)
+                {
+                    try
+                    {
+                        lock.wait();
+                    }
+                    catch ( InterruptedException ie)
+                    {
+                        // ends the thread
+                    }
+                }
+            }
+        });
+        live.start();
+        while ( footprint ( "buffers") == 0 && live.isAlive())
+        {
+            Thread.sleep ( 10);
+        }
+        check ( "a live thread's buffer is reported", footprint ( "buffers") > 0);
+        live.interrupt();
+        live.join();
+
+        for ( int i = 0; i < threads; i++)
+        {
+            Thread thread = new Thread ( render);
+            thread.start();
+            thread.join();
+        }
+        check ( "no buffer is reported after " + threads + " threads ended", footprint ( "buffers") == 0);
+
+        ColorCodeCache.FRAGMENTS.put ( "governor-check:last", "<pre></pre>");
+        check ( "the fragment cache kept its " + entries + " entries", cache_entries() > entries);
+
+        System.out.println ( ColorCodeGovernor.get_statistics());
+        if ( failures > 0)
+        {
+            System.exit ( 1);
+        }
+    }
+
+    private static void
+    check ( String description, boolean passed)
+    {
+        System.out.println ( ( passed ? "ok:     " : "FAILED: ") + description);
+        if ( passed == false)
+        {
+            failures++;
+        }
+    }
+
+    private static long
+    footprint ( String name)
+    {
+        Map statistics = ColorCodeGovernor.get_statistics();
+        return ((Long)statistics.get ( name)).longValue();
+    }
+
+    private static int
+    cache_entries()
+    {
+        return ((Number)ColorCodeCache.FRAGMENTS.get_statistics().get ( "entries")).intValue();
+    }
+}
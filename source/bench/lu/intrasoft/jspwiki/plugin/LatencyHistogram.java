@@ -0,0 +1,114 @@
+package lu.intrasoft.jspwiki.plugin;
+
+/**
+ *  LatencyHistogram.java
+ *
+ *  LatencyHistogram is a small high-dynamic-range histogram of durations
+ *  in nanoseconds, in the manner of HdrHistogram: values are recorded in
+ *  log-linear buckets, 64 per power of two, which bounds the error of any
+ *  reported percentile to under 2% over the whole range.  Not thread-safe;
+ *  each thread records into its own histogram, merged with <code>add</code>.
+ */
+
+public class LatencyHistogram
+{
+    private static final int sub_bits = 6;
+    private static final int sub_count = 1 << sub_bits;
+
+    private final long[] counts = new long[( 64 - sub_bits) * sub_count];
+    private long total_count;
+    private long total_value;
+    private long max_value;
+
+    public void
+    record ( long value)
+    {
+        if ( value < 0)
+        {
+            value = 0;
+        }
+        counts[index_of ( value)]++;
+        total_count++;
+        total_value += value;
+        max_value = Math.max ( max_value, value);
+    }
+
+    public void
+    add ( LatencyHistogram other)
+    {
+        for ( int i = 0; i < counts.length; i++)
+        {
+            counts[i] += other.counts[i];
+        }
+        total_count += other.total_count;
+        total_value += other.total_value;
+        max_value = Math.max ( max_value, other.max_value);
+    }
+
+    public long
+    get_count()
+    {
+        return total_count;
+    }
+
+    public long
+    get_max()
+    {
+        return max_value;
+    }
+
+    public long
+    get_mean()
+    {
+        return total_count == 0 ? 0 : total_value / total_count;
+    }
+
+    /**
+     * @param percentile 0 to 100
+     * @return the (bucket-rounded) value at or below which <code>percentile</code>
+     *         percent of the recorded values fall
+     */
+    public long
+    get_percentile ( double percentile)
+    {
+        if ( total_count == 0)
+        {
+            return 0;
+        }
+        long wanted = Math.max ( 1, (long)Math.ceil ( total_count * percentile / 100.0));
+        long seen = 0;
+        for ( int i = 0; i < counts.length; i++)
+        {
+            seen += counts[i];
+            if ( seen >= wanted && i + 1 < counts.length)
+            {
+                return Math.min ( value_of ( i + 1) - 1, max_value);
+            }
+        }
+        return max_value;
+    }
+
+    private static int
+    index_of ( long value)
+    {
+        if ( value < sub_count)
+        {
+            return (int)value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros ( value);
+        int sub = (int)( value >>> ( exponent - sub_bits)) & ( sub_count - 1);
+        return ( exponent - sub_bits + 1) * sub_count + sub;
+    }
+
+    private static long
+    value_of ( int index)
+    {
+        if ( index < sub_count)
+        {
+            return index;
+        }
+        int exponent = index / sub_count + sub_bits - 1;
+        long sub = index % sub_count;
+        return ( sub_count + sub) << ( exponent - sub_bits);
+    }
+}
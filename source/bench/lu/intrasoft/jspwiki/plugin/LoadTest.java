@@ -0,0 +1,368 @@
+package lu.intrasoft.jspwiki.plugin;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.ecyrd.jspwiki.WikiContext;
+import com.ecyrd.jspwiki.plugin.PluginException;
+
+/**
+ *  LoadTest.java
+ *
+ *  LoadTest simulates wiki page views: a number of threads each repeatedly
+ *  pick a page at random and render all of its code blocks through
+ *  <code>ColorCodePlugin.execute</code>, as JSPWiki would while rendering
+ *  the page.  At the end it reports page throughput, page and block
+ *  latency percentiles, the fragment cache hit ratio, the allocation rate
+ *  of the rendering threads and the GC pauses seen during the run.
+ *
+ *  Options, all as <code>name=value</code>:
+ *  <ul>
+ *  <li>threads - number of concurrent page views (default 16)</li>
+ *  <li>virtual - 'true' to use virtual threads, where the JVM has them</li>
+ *  <li>warmup, duration - seconds of warm-up and of measurement (5, 30)</li>
+ *  <li>pages - number of distinct pages (200)</li>
+ *  <li>blocks - maximum code blocks per page (6)</li>
+ *  <li>repeat - maximum copies of a sample in one block (20)</li>
+ *  <li>corpus - directory of source files to use instead of the samples</li>
+ *  <li>unique - percentage of blocks given a body never rendered before (0);
+ *      the pages repeat a small set of blocks, so by default nearly every
+ *      block is a fragment cache hit, while 'unique=100' measures the
+ *      rendering itself</li>
+ *  </ul>
+ *  Runs offline; the syntax resources must be on the classpath:
+ *  <pre>
+ *  ant loadtest -Dloadtest.args="threads=64 duration=60"
+ *  </pre>
+ *
+ *  Each page view gets a fresh stand-in WikiContext (BenchContext), which
+ *  has no WikiEngine, so sources named by 'src' are not exercised.
+ */
+
+public class LoadTest
+{
+    private final List pages;
+    private final int thread_count;
+    private final int unique_percent;
+    private final Object virtual_builder; // a Thread.Builder, when using virtual threads
+    private volatile boolean running;
+
+    private final List results = new ArrayList(); // one Worker per thread of the measured run
+    private final LatencyHistogram gc_pauses = new LatencyHistogram();
+
+    public LoadTest ( List pages, int thread_count, int unique_percent, boolean virtual)
+    {
+        this.pages = pages;
+        this.thread_count = thread_count;
+        this.unique_percent = unique_percent;
+        this.virtual_builder = virtual ? virtual_thread_builder() : null;
+    }
+
+    public static void
+    main ( String[] args)
+        throws Exception
+    {
+        Map options = new HashMap();
+        for ( int i = 0; i < args.length; i++)
+        {
+            int equals = args[i].indexOf ( '=');
+            if ( equals > 0)
+            {
+                options.put ( args[i].substring ( 0, equals), args[i].substring ( equals + 1));
+            }
+        }
+        String[][] blocks = BenchCorpus.load_blocks ( (String)options.get ( "corpus"));
+        List pages = BenchCorpus.make_pages ( blocks,
+                                              option ( options, "pages", 200),
+                                              option ( options, "blocks", 6),
+                                              option ( options, "repeat", 20),
+                                              42);
+        LoadTest test = new LoadTest ( pages,
+                                       option ( options, "threads", 16),
+                                       option ( options, "unique", 0),
+                                       Boolean.valueOf ( (String)options.get ( "virtual")).booleanValue());
+
+        System.out.println ( "warm-up...");
+        test.run ( option ( options, "warmup", 5) * 1000L);
+        test.results.clear();
+
+        System.out.println ( "measuring...");
+        test.install_gc_listener();
+        long gc_time = total_gc_time();
+        Map cache_before = ColorCodeCache.FRAGMENTS.get_statistics();
+        long elapsed = test.run ( option ( options, "duration", 30) * 1000L);
+        gc_time = total_gc_time() - gc_time;
+        test.report ( elapsed, gc_time, cache_before, ColorCodeCache.FRAGMENTS.get_statistics());
+    }
+
+    /**
+     * Run the workers for the given time
+     *
+     * @return the elapsed time in nanoseconds
+     */
+    private long
+    run ( long millis)
+        throws Exception
+    {
+        running = true;
+        Thread[] threads = new Thread[thread_count];
+        for ( int i = 0; i < thread_count; i++)
+        {
+            Worker worker = new Worker ( i);
+            results.add ( worker);
+            threads[i] = new_thread ( worker);
+        }
+        long started = System.nanoTime();
+        for ( int i = 0; i < thread_count; i++)
+        {
+            threads[i].start();
+        }
+        Thread.sleep ( millis);
+        running = false;
+        for ( int i = 0; i < thread_count; i++)
+        {
+            threads[i].join();
+        }
+        return System.nanoTime() - started;
+    }
+
+    private Thread
+    new_thread ( Runnable task)
+        throws Exception
+    {
+        if ( virtual_builder != null)
+        {
+            Method unstarted = Class.forName ( "java.lang.Thread$Builder").getMethod ( "unstarted", new Class[] { Runnable.class });
+            return (Thread)unstarted.invoke ( virtual_builder, new Object[] { task });
+        }
+        return new Thread ( task);
+    }
+
+    /**
+     * Get a builder of virtual threads (Java 21 and later) by reflection,
+     * so that the load test still builds and runs on older JVMs
+     *
+     * @return a Thread.Builder, or null if the JVM has no virtual threads
+     */
+    private static Object
+    virtual_thread_builder()
+    {
+        try
+        {
+            Method of_virtual = Thread.class.getMethod ( "ofVirtual", new Class[0]);
+            return of_virtual.invoke ( null, new Object[0]);
+        }
+        catch ( Exception ex)
+        {
+            System.out.println ( "virtual threads not available in this JVM, using platform threads");
+            return null;
+        }
+    }
+
+    private void
+    report ( long elapsed, long gc_time, Map cache_before, Map cache_after)
+    {
+        LatencyHistogram page_latency = new LatencyHistogram();
+        LatencyHistogram block_latency = new LatencyHistogram();
+        long allocated = 0;
+        long bytes_out = 0;
+        Iterator iter = results.iterator();
+        while ( iter.hasNext())
+        {
+            Worker worker = (Worker)iter.next();
+            page_latency.add ( worker.page_latency);
+            block_latency.add ( worker.block_latency);
+            allocated = ( allocated < 0 || worker.allocated < 0) ? -1 : allocated + worker.allocated;
+            bytes_out += worker.bytes_out;
+        }
+        double seconds = elapsed / 1e9;
+        System.out.println ( "threads:        " + thread_count + ( virtual_builder != null ? " (virtual)" : ""));
+        System.out.println ( "pages rendered: " + page_latency.get_count() + " in " + format ( seconds) + "s");
+        System.out.println ( "throughput:     " + format ( page_latency.get_count() / seconds) + " pages/s, "
+                             + format ( block_latency.get_count() / seconds) + " blocks/s, "
+                             + format ( bytes_out / seconds / 1e6) + " MB/s of HTML (as chars)");
+        print_latency ( "page latency:   ", page_latency);
+        print_latency ( "block latency:  ", block_latency);
+        long hits = counter ( cache_after, "hits") - counter ( cache_before, "hits");
+        long misses = counter ( cache_after, "misses") - counter ( cache_before, "misses");
+        System.out.println ( "fragment cache: " + hits + " hits, " + misses + " misses, hit ratio "
+                             + format ( 100.0 * hits / Math.max ( 1, hits + misses)) + "%"
+                             + ( unique_percent > 0 ? " (" + unique_percent + "% unique blocks)" : ""));
+        System.out.println ( "allocation:     " + ( allocated < 0 ? "n/a (not measurable for these threads)"
+                                                    : format ( allocated / seconds / 1e6) + " MB/s, "
+                                                      + ( allocated / Math.max ( 1, page_latency.get_count())) + " bytes/page"));
+        System.out.println ( "gc:             " + gc_pauses.get_count() + " pauses, total " + gc_time + "ms ("
+                             + format ( 100.0 * gc_time / ( elapsed / 1e6)) + "%)");
+        if ( gc_pauses.get_count() > 0)
+        {
+            print_latency ( "gc pauses:      ", gc_pauses);
+        }
+    }
+
+    private static void
+    print_latency ( String label, LatencyHistogram histogram)
+    {
+        System.out.println ( label
+                             + "mean=" + micros ( histogram.get_mean())
+                             + " p50=" + micros ( histogram.get_percentile ( 50))
+                             + " p90=" + micros ( histogram.get_percentile ( 90))
+                             + " p99=" + micros ( histogram.get_percentile ( 99))
+                             + " p99.9=" + micros ( histogram.get_percentile ( 99.9))
+                             + " max=" + micros ( histogram.get_max()));
+    }
+
+    /**
+     * Record the duration of every GC pause of the measured run
+     */
+    private void
+    install_gc_listener()
+    {
+        NotificationListener listener = new NotificationListener()
+        {
+            public void handleNotification ( Notification notification, Object handback)
+            {
+                if ( "com.sun.management.gc.notification".equals ( notification.getType()) == false)
+                {
+                    return;
+                }
+                CompositeData info = (CompositeData)notification.getUserData();
+                CompositeData gc_info = (CompositeData)info.get ( "gcInfo");
+                long millis = ((Long)gc_info.get ( "duration")).longValue();
+                synchronized ( gc_pauses)
+                {
+                    gc_pauses.record ( millis * 1000000L);
+                }
+            }
+        };
+        Iterator iter = ManagementFactory.getGarbageCollectorMXBeans().iterator();
+        while ( iter.hasNext())
+        {
+            Object bean = iter.next();
+            if ( bean instanceof NotificationEmitter)
+            {
+                ((NotificationEmitter)bean).addNotificationListener ( listener, null, null);
+            }
+        }
+    }
+
+    private static long
+    total_gc_time()
+    {
+        long total = 0;
+        Iterator iter = ManagementFactory.getGarbageCollectorMXBeans().iterator();
+        while ( iter.hasNext())
+        {
+            total += Math.max ( 0, ((GarbageCollectorMXBean)iter.next()).getCollectionTime());
+        }
+        return total;
+    }
+
+    private static long
+    counter ( Map statistics, String name)
+    {
+        Number value = (Number)statistics.get ( name);
+        return value == null ? 0 : value.longValue();
+    }
+
+    private static int
+    option ( Map options, String name, int fallback)
+    {
+        String value = (String)options.get ( name);
+        return value == null ? fallback : Integer.parseInt ( value);
+    }
+
+    private static String
+    micros ( long nanos)
+    {
+        return format ( nanos / 1000.0) + "us";
+    }
+
+    private static String
+    format ( double value)
+    {
+        return String.valueOf ( Math.round ( value * 10) / 10.0);
+    }
+
+    /**
+     * One simulated reader, rendering random pages until stopped
+     */
+    private class Worker
+        implements Runnable
+    {
+        final LatencyHistogram page_latency = new LatencyHistogram();
+        final LatencyHistogram block_latency = new LatencyHistogram();
+        final Random random;
+        final int seed;
+        long allocated = -1;
+        long bytes_out;
+        long unique_count;
+
+        Worker ( int seed)
+        {
+            this.seed = seed;
+            random = new Random ( seed);
+        }
+
+        public void
+        run()
+        {
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            long allocated_before = allocated_bytes ( threads);
+            ColorCodePlugin plugin = new ColorCodePlugin();
+            while ( running)
+            {
+                List page = (List)pages.get ( random.nextInt ( pages.size()));
+                long page_start = System.nanoTime();
+                WikiContext context = new BenchContext();
+                for ( int b = 0; b < page.size(); b++)
+                {
+                    // JSPWiki hands every invocation its own parameter Map
+                    Map params = new HashMap ( (Map)page.get ( b));
+                    if ( unique_percent > 0 && random.nextInt ( 100) < unique_percent)
+                    {
+                        params.put ( "_body", params.get ( "_body") + "\n" + seed + "." + ( ++unique_count) + "\n");
+                    }
+                    long block_start = System.nanoTime();
+                    try
+                    {
+                        bytes_out += plugin.execute ( context, params).length();
+                    }
+                    catch ( PluginException pe)
+                    {
+                        throw new RuntimeException ( pe.getMessage());
+                    }
+                    block_latency.record ( System.nanoTime() - block_start);
+                }
+                page_latency.record ( System.nanoTime() - page_start);
+            }
+            long allocated_after = allocated_bytes ( threads);
+            if ( allocated_before >= 0 && allocated_after >= 0)
+            {
+                allocated = allocated_after - allocated_before;
+            }
+        }
+
+        private long
+        allocated_bytes ( ThreadMXBean threads)
+        {
+            if ( threads instanceof com.sun.management.ThreadMXBean)
+            {
+                return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes ( Thread.currentThread().getId());
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package lu.intrasoft.jspwiki.plugin;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  ColorCodeAdmission.java
+ *
+ *  ColorCodeAdmission limits the rendering done at once on request
+ *  threads.  Inputs up to <code>colorcode.admit.small</code> characters
+ *  (default 8K) go through their own lane, so they never wait behind large
+ *  ones; each takes one of <code>colorcode.admit.small.permits</code>
+ *  (default twice the processors).  Larger inputs take permits weighted by
+ *  their size, one per kilobyte, from a total of
+ *  <code>colorcode.admit.chars</code> (default 4M) characters in flight.
+ *
+ *  A render that cannot be admitted at once waits at most
+ *  <code>colorcode.admit.wait</code> milliseconds (default 50), and only if
+ *  fewer than <code>colorcode.admit.queue</code> (default 16) are already
+ *  waiting; otherwise it is rejected, and the caller serves something
+ *  cheaper: a stale fragment, or the text escaped in a plain block.
+ *
+ *  Admission control is off unless <code>colorcode.admit</code> is 'true'.
+ *  The counters are logged by ColorCodeStatistics.
+ */
+
+public class ColorCodeAdmission
+{
+    private static final int processors = Runtime.getRuntime().availableProcessors();
+
+    public static final ColorCodeAdmission RENDERS =
+        new ColorCodeAdmission ( Boolean.getBoolean ( "colorcode.admit"),
+                                 Integer.getInteger ( "colorcode.admit.small", 8 * 1024).intValue(),
+                                 Integer.getInteger ( "colorcode.admit.small.permits", 2 * processors).intValue(),
+                                 Integer.getInteger ( "colorcode.admit.chars", 4 * 1024 * 1024).intValue(),
+                                 Integer.getInteger ( "colorcode.admit.wait", 50).longValue(),
+                                 Integer.getInteger ( "colorcode.admit.queue", 16).intValue());
+
+    private final boolean enabled;
+    private final int small_size;
+    private final Semaphore small_lane;
+    private final Semaphore large_lane; // one permit per kilobyte
+    private final int large_permits;
+    private final long max_wait;
+    private final int max_queue;
+
+    private final AtomicLong admitted_small = new AtomicLong();
+    private final AtomicLong admitted_large = new AtomicLong();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong wait_nanos = new AtomicLong();
+    private final AtomicLong max_wait_nanos = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong served_stale = new AtomicLong();
+    private final AtomicLong served_plain = new AtomicLong();
+
+    public ColorCodeAdmission ( boolean enabled, int small_size, int small_permits,
+                                int max_chars, long max_wait, int max_queue)
+    {
+        this.enabled = enabled;
+        this.small_size = small_size;
+        this.small_lane = new Semaphore ( Math.max ( 1, small_permits));
+        this.large_permits = Math.max ( 1, max_chars / 1024);
+        this.large_lane = new Semaphore ( large_permits);
+        this.max_wait = max_wait;
+        this.max_queue = max_queue;
+    }
+
+    /**
+     * @return true if renders are limited, false if all are admitted
+     */
+    public boolean
+    is_enabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Ask to render an input; if true is returned, <code>leave</code> must
+     * be called with the same size when the render is done
+     *
+     * @param size the length of the input
+     * @return true if the render may go ahead, false if it is rejected
+     */
+    public boolean
+    enter ( long size)
+    {
+        if ( enabled == false)
+        {
+            return true;
+        }
+        Semaphore lane = size <= small_size ? small_lane : large_lane;
+        int weight = weight ( size);
+        if ( lane.tryAcquire ( weight))
+        {
+            count_admitted ( size);
+            return true;
+        }
+        if ( lane.getQueueLength() >= max_queue)
+        {
+            rejected.incrementAndGet();
+            return false;
+        }
+        queued.incrementAndGet();
+        long started = System.nanoTime();
+        boolean acquired = false;
+        try
+        {
+            acquired = lane.tryAcquire ( weight, max_wait, TimeUnit.MILLISECONDS);
+        }
+        catch ( InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+        }
+        long waited = System.nanoTime() - started;
+        wait_nanos.addAndGet ( waited);
+        long max = max_wait_nanos.get();
+        while ( waited > max && max_wait_nanos.compareAndSet ( max, waited) == false)
+        {
+            max = max_wait_nanos.get();
+        }
+        if ( acquired == false)
+        {
+            rejected.incrementAndGet();
+            return false;
+        }
+        count_admitted ( size);
+        return true;
+    }
+
+    /**
+     * Hand back the permits taken by <code>enter</code>
+     *
+     * @param size the length of the input, as given to <code>enter</code>
+     */
+    public void
+    leave ( long size)
+    {
+        if ( enabled)
+        {
+            ( size <= small_size ? small_lane : large_lane).release ( weight ( size));
+        }
+    }
+
+    /**
+     * Count a rejected render served from a stale fragment
+     *
+     * @param fragment the stale fragment
+     * @return the fragment
+     */
+    public String
+    stale ( String fragment)
+    {
+        served_stale.incrementAndGet();
+        return fragment;
+    }
+
+    /**
+     * The fallback for a rejected render with nothing stale to serve: the
+     * text, escaped, in a plain preformatted block
+     *
+     * @param text the input
+     * @return the HTML fragment
+     * @throws IOException if the input cannot be read
+     */
+    public String
+    plain ( Reader text)
+        throws IOException
+    {
+        served_plain.incrementAndGet();
+        StringBuffer result = new StringBuffer ( "<pre class=\"colorcode\">");
+        char[] buffer = new char[4096];
+        int count;
+        while ( ( count = text.read ( buffer)) > 0)
+        {
+            ColorCodeEscape.append ( buffer, 0, count, result);
+        }
+        result.append ( "</pre>");
+        return result.toString();
+    }
+
+    /**
+     * @return the admission counters: admitted in each lane, queued
+     *         (renders that had to wait), the total and longest waits in
+     *         nanoseconds, rejected, and the fallbacks served
+     */
+    public Map
+    get_statistics()
+    {
+        Map result = new LinkedHashMap();
+        result.put ( "admitted.small", Long.valueOf ( admitted_small.get()));
+        result.put ( "admitted.large", Long.valueOf ( admitted_large.get()));
+        result.put ( "queued", Long.valueOf ( queued.get()));
+        result.put ( "wait.nanos", Long.valueOf ( wait_nanos.get()));
+        result.put ( "wait.max.nanos", Long.valueOf ( max_wait_nanos.get()));
+        result.put ( "rejected", Long.valueOf ( rejected.get()));
+        result.put ( "served.stale", Long.valueOf ( served_stale.get()));
+        result.put ( "served.plain", Long.valueOf ( served_plain.get()));
+        return result;
+    }
+
+    private int
+    weight ( long size)
+    {
+        if ( size <= small_size)
+        {
+            return 1;
+        }
+        return (int)Math.min ( large_permits, size / 1024 + 1); // so the largest input can still be admitted alone
+    }
+
+    private void
+    count_admitted ( long size)
+    {
+        ( size <= small_size ? admitted_small : admitted_large).incrementAndGet();
+    }
+}
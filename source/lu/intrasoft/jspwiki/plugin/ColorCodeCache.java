@@ -0,0 +1,287 @@
+package lu.intrasoft.jspwiki.plugin;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ *  ColorCodeCache.java
+ *
+ *  ColorCodeCache keeps rendered HTML fragments, least recently used
+ *  first out, within a limit on both the number of entries and their
+ *  total size in characters.  The shared instance, <code>FRAGMENTS</code>,
+ *  holds both page-body renders, keyed by a digest of the body, and
+ *  <code>src=</code> renders (see ColorCodeSource); it
+ *  is sized by the system properties <code>colorcode.cache.entries</code>
+ *  (default 256) and <code>colorcode.cache.chars</code> (default 8M).
+ *
+ *  If <code>colorcode.cache.offheap.bytes</code> is set, new fragments are
+ *  stored off the heap instead (see ColorCodeOffHeapCache, with slabs of
+ *  <code>colorcode.cache.offheap.slab</code> bytes, default 4M), and only
+ *  the fragments read <code>colorcode.cache.promote</code> times (default
+ *  2) are copied into the on-heap entries, which then need only be few.
+ */
+
+public class ColorCodeCache
+    implements ColorCodeFootprint
+{
+    private static final int entry_bytes = 96; // estimated heap per entry, besides the text
+    private static final String hex_digits = "0123456789abcdef";
+    public static final ColorCodeCache FRAGMENTS =
+        new ColorCodeCache ( Integer.getInteger ( "colorcode.cache.entries", 256).intValue(),
+                             Integer.getInteger ( "colorcode.cache.chars", 8 * 1024 * 1024).longValue(),
+                             Long.getLong ( "colorcode.cache.offheap.bytes", 0).longValue(),
+                             Integer.getInteger ( "colorcode.cache.offheap.slab", 4 * 1024 * 1024).intValue(),
+                             Integer.getInteger ( "colorcode.cache.promote", 2).intValue());
+
+    private final int max_entries;
+    private final long max_chars;
+    private final ColorCodeOffHeapCache off_heap; // null when all entries are on the heap
+    private final int promote_hits;
+    private final LinkedHashMap entries = new LinkedHashMap ( 64, 0.75f, true);
+    private long chars = 0;
+    private long key_chars = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public ColorCodeCache ( int max_entries, long max_chars)
+    {
+        this ( max_entries, max_chars, 0, 0, 0);
+    }
+
+    /**
+     * @param max_entries the number of fragments kept on the heap
+     * @param max_chars the total size of the fragments kept on the heap
+     * @param off_heap_bytes the size of the off-heap tier, 0 for none
+     * @param slab_size the size of each off-heap slab
+     * @param promote_hits reads of an off-heap fragment before it is copied to the heap
+     */
+    public ColorCodeCache ( int max_entries, long max_chars,
+                            long off_heap_bytes, int slab_size, int promote_hits)
+    {
+        this.max_entries = max_entries;
+        this.max_chars = max_chars;
+        this.off_heap = off_heap_bytes > 0 && slab_size > 0 ? new ColorCodeOffHeapCache ( off_heap_bytes, slab_size) : null;
+        this.promote_hits = promote_hits;
+    }
+
+    /**
+     * Build a cache key from a prefix identifying the input, and all the
+     * plugin parameters that affect the output (all but the JSPWiki ones
+     * starting with '_'), in a canonical order
+     *
+     * @param prefix identity of the input
+     * @param params the plugin parameters
+     * @return the key
+     */
+    public static String
+    key ( String prefix, Map params)
+    {
+        StringBuffer result = new StringBuffer ( prefix);
+        Iterator iter = new TreeMap ( params).entrySet().iterator();
+        while ( iter.hasNext())
+        {
+            Map.Entry entry = (Map.Entry)iter.next();
+            String name = (String)entry.getKey();
+            if ( name.startsWith ( "_") == false && entry.getValue() instanceof String)
+            {
+                result.append ( '|').append ( name).append ( '=').append ( entry.getValue());
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Digest a text, for a key identifying an input by its content
+     *
+     * @param text the input
+     * @return the SHA-1 digest of its UTF-8 encoding, in hex
+     */
+    public static String
+    digest ( String text)
+    {
+        byte[] hash;
+        try
+        {
+            hash = MessageDigest.getInstance ( "SHA-1").digest ( text.getBytes ( ColorCodeMarkup.UTF8));
+        }
+        catch ( NoSuchAlgorithmException nsae)
+        {
+            throw new IllegalStateException ( "SHA-1 not available: " + nsae.getMessage()); // required of every JVM
+        }
+        StringBuffer result = new StringBuffer ( 2 * hash.length);
+        for ( int i = 0; i < hash.length; i++)
+        {
+            result.append ( hex_digits.charAt ( ( hash[i] >> 4) & 0xf));
+            result.append ( hex_digits.charAt ( hash[i] & 0xf));
+        }
+        return result.toString();
+    }
+
+    public String
+    get ( String key)
+    {
+        synchronized ( this)
+        {
+            String result = (String)entries.get ( key);
+            if ( result != null)
+            {
+                hits++;
+                return result;
+            }
+            misses++;
+        }
+        if ( off_heap == null)
+        {
+            return null;
+        }
+        Object[] found = off_heap.get ( key);
+        if ( found == null)
+        {
+            return null;
+        }
+        String result = (String)found[0];
+        if ( ((Integer)found[1]).intValue() >= promote_hits)
+        {
+            put_on_heap ( key, result);
+            ColorCodeGovernor.check();
+        }
+        return result;
+    }
+
+    /**
+     * Add a fragment, evicting the least recently used ones as needed;
+     * a fragment larger than the whole cache is not kept
+     */
+    public void
+    put ( String key, String fragment)
+    {
+        if ( off_heap == null)
+        {
+            put_on_heap ( key, fragment);
+        }
+        else
+        {
+            synchronized ( this)
+            {
+                String previous = (String)entries.remove ( key);
+                if ( previous != null)
+                {
+                    chars -= previous.length();
+                    key_chars -= key.length();
+                }
+            }
+            off_heap.put ( key, fragment);
+        }
+        ColorCodeGovernor.check();
+    }
+
+    private synchronized void
+    put_on_heap ( String key, String fragment)
+    {
+        if ( fragment.length() > max_chars || max_entries <= 0 || ColorCodeGovernor.is_under_pressure())
+        {
+            return;
+        }
+        String previous = (String)entries.put ( key, fragment);
+        if ( previous != null)
+        {
+            chars -= previous.length();
+            key_chars -= key.length();
+        }
+        chars += fragment.length();
+        key_chars += key.length();
+        if ( entries.size() > max_entries || chars > max_chars)
+        {
+            evict ( entries.size() - max_entries, chars - max_chars);
+        }
+    }
+
+    /**
+     * Evict least recently used entries until there are <code>count</code>
+     * fewer and their text is <code>text_chars</code> shorter
+     *
+     * @return the estimated heap released
+     */
+    private long
+    evict ( int count, long text_chars)
+    {
+        long released = 0;
+        Iterator iter = entries.entrySet().iterator();
+        while ( ( count > 0 || text_chars > 0) && iter.hasNext())
+        {
+            Map.Entry entry = (Map.Entry)iter.next();
+            int length = ((String)entry.getValue()).length();
+            int key_length = ((String)entry.getKey()).length();
+            iter.remove();
+            chars -= length;
+            key_chars -= key_length;
+            released += 2 * ( length + key_length) + entry_bytes;
+            count--;
+            text_chars -= length;
+            evictions++;
+        }
+        return released;
+    }
+
+    /**
+     * @return the estimated heap held: the text of the entries kept on the
+     *         heap, and the index of those kept off it
+     */
+    public long
+    get_footprint()
+    {
+        long result;
+        synchronized ( this)
+        {
+            result = 2 * ( chars + key_chars) + (long)entry_bytes * entries.size();
+        }
+        return off_heap == null ? result : result + off_heap.get_index_footprint();
+    }
+
+    /**
+     * Evict entries kept on the heap, least recently used first
+     */
+    public synchronized long
+    shrink ( long bytes)
+    {
+        long released = 0;
+        while ( released < bytes && entries.isEmpty() == false)
+        {
+            released += evict ( 1, 0);
+        }
+        return released;
+    }
+
+    /**
+     * @return the cache counters: entries, chars, hits, misses, evictions,
+     *         followed by those of the off-heap tier, prefixed 'offheap.'
+     */
+    public Map
+    get_statistics()
+    {
+        Map result = new LinkedHashMap();
+        synchronized ( this)
+        {
+            result.put ( "entries", Long.valueOf ( entries.size()));
+            result.put ( "chars", Long.valueOf ( chars));
+            result.put ( "hits", Long.valueOf ( hits));
+            result.put ( "misses", Long.valueOf ( misses));
+            result.put ( "evictions", Long.valueOf ( evictions));
+        }
+        if ( off_heap != null)
+        {
+            Iterator iter = off_heap.get_statistics().entrySet().iterator();
+            while ( iter.hasNext())
+            {
+                Map.Entry entry = (Map.Entry)iter.next();
+                result.put ( "offheap." + entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,290 @@
+package lu.intrasoft.jspwiki.plugin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import com.ecyrd.jspwiki.WikiContext;
+
+/**
+ *  ColorCodeCompact.java
+ *
+ *  ColorCodeCompact collects a render in the compact form requested by
+ *  <code>output='compact'</code>: the text itself, escaped but otherwise
+ *  unchanged, in a <code>pre</code> element, with the token classes as a
+ *  separate array of (class, length) pairs, adjacent tokens of the same
+ *  class merged, varint-encoded and base64-encoded in a
+ *  <code>data-tokens</code> attribute.  The script colorcode-compact.js
+ *  turns the array back into styled spans in the browser.
+ *
+ *  The classes are numbered in a fixed order (plain text, normal, keyword,
+ *  symbol, string, number, then the specials by name), so the style sheet
+ *  mapping them to colors depends only on the syntax configuration.  It is
+ *  identified by a digest of its colors, and every rule is scoped to the
+ *  <code>pre</code> elements of that class, so that blocks of different
+ *  syntaxes on one page keep their own colors.  It is written at the
+ *  start of the fragment, so that a cached fragment always carries its
+ *  colors; like the script, it is kept only once in a page (see
+ *  <code>add_page_resources</code>).
+ */
+
+public class ColorCodeCompact
+{
+    public static final String COMPACT = "compact";
+
+    private static final String[] standard_classes = {
+        "colorcode.normal", "colorcode.keyword", "colorcode.symbol", "colorcode.string", "colorcode.number"
+    };
+    private static final String style_start = "<style type=\"text/css\">pre.";
+    private static final String style_end = "</style>\n";
+    private static final String element_start = "<pre class=\"colorcode-compact ";
+
+    private static String script; // colorcode-compact.js, loaded on first use
+
+    private final Map class_numbers = new HashMap(); // token class -> Integer, 0 is plain text
+    private final String style_id;
+    private final String style_sheet;
+    private final StringBuffer text = new StringBuffer();
+    private final ByteArrayOutputStream runs = new ByteArrayOutputStream();
+    private int run_class = 0;
+    private int run_length = 0;
+
+    /**
+     * @param syntax the syntax and formatting properties of the render
+     * @param special_names the names of the special token classes
+     */
+    public ColorCodeCompact ( Properties syntax, Set special_names)
+    {
+        ArrayList classes = new ArrayList();
+        for ( int i = 0; i < standard_classes.length; i++)
+        {
+            classes.add ( standard_classes[i]);
+        }
+        ArrayList specials = new ArrayList ( special_names);
+        Collections.sort ( specials);
+        for ( int i = 0; i < specials.size(); i++)
+        {
+            classes.add ( "colorcode.special." + specials.get ( i));
+        }
+
+        String area = "{background:" + syntax.getProperty ( "colorcode.area.bgcolor")
+                      + ";border:" + syntax.getProperty ( "colorcode.area.border") + "px solid;padding:3px}";
+        ArrayList rules = new ArrayList(); // " span.tN{...}", one per class
+        StringBuffer colors = new StringBuffer ( area);
+        for ( int i = 0; i < classes.size(); i++)
+        {
+            String key = (String)classes.get ( i);
+            class_numbers.put ( key, Integer.valueOf ( i + 1));
+            StringBuffer rule = new StringBuffer();
+            rule.append ( " span.t").append ( i + 1).append ( "{color:").append ( syntax.getProperty ( key + ".font.color"));
+            if ( Boolean.valueOf ( syntax.getProperty ( key + ".font.bold")).booleanValue())
+            {
+                rule.append ( ";font-weight:bold");
+            }
+            if ( Boolean.valueOf ( syntax.getProperty ( key + ".font.italic")).booleanValue())
+            {
+                rule.append ( ";font-style:italic");
+            }
+            rule.append ( '}');
+            rules.add ( rule.toString());
+            colors.append ( rule);
+        }
+        style_id = "cc" + ColorCodeCache.digest ( colors.toString());
+
+        // the first rule follows "pre." and the id in finish()
+        StringBuffer css = new StringBuffer ( area);
+        for ( int i = 0; i < rules.size(); i++)
+        {
+            css.append ( " pre.").append ( style_id).append ( rules.get ( i));
+        }
+        style_sheet = css.toString().replaceAll ( "[<>]", ""); // values come from the page
+    }
+
+    /**
+     * @param params the plugin parameters
+     * @return true if the compact form is wanted
+     */
+    public static boolean
+    is_requested ( Map params)
+    {
+        Object output = params.get ( "output");
+        return output != null && COMPACT.equalsIgnoreCase ( output.toString());
+    }
+
+    /**
+     * Add a token
+     *
+     * @param token_class the class the token is rendered as, e.g. "colorcode.keyword"
+     * @param value the token text
+     */
+    public void
+    token ( String token_class, String value)
+    {
+        Integer number = (Integer)class_numbers.get ( token_class);
+        add ( number == null ? 0 : number.intValue(), value);
+    }
+
+    /**
+     * Add unstyled text: white space and line ends
+     */
+    public void
+    text ( String value)
+    {
+        add ( 0, value);
+    }
+
+    /**
+     * Append the compact element to the output
+     */
+    public void
+    finish ( ColorCodeOutput output)
+    {
+        end_run();
+        StringBuffer element = new StringBuffer ( text.length() + runs.size() * 4 / 3 + style_sheet.length() + 160);
+        element.append ( style_start).append ( style_id).append ( style_sheet).append ( style_end);
+        element.append ( element_start).append ( style_id).append ( "\" data-tokens=\"");
+        base64 ( runs.toByteArray(), element);
+        element.append ( "\">");
+        ColorCodeEscape.append ( text.toString().toCharArray(), 0, text.length(), element);
+        element.append ( "</pre>\n");
+        output.append ( element.toString());
+    }
+
+    /**
+     * Prefix a compact fragment with the script, if it has not yet been
+     * included in the page being rendered, and drop the fragment's style
+     * sheet if the page already has it
+     *
+     * @param wiki_context the context of the page, or null to always include them
+     * @param fragment the fragment from <code>finish</code>, possibly cached
+     * @return the fragment, with the resources it needs
+     */
+    public static String
+    add_page_resources ( WikiContext wiki_context, String fragment)
+    {
+        if ( fragment.startsWith ( style_start) == false)
+        {
+            return fragment; // not compact, for example a plain text fallback
+        }
+        String id = fragment.substring ( style_start.length(), fragment.indexOf ( '{', style_start.length()));
+
+        Set included = null;
+        if ( wiki_context != null)
+        {
+            included = (Set)wiki_context.getVariable ( page_resources);
+            if ( included == null)
+            {
+                included = new HashSet();
+                wiki_context.setVariable ( page_resources, included);
+            }
+        }
+        if ( included != null && included.add ( id) == false)
+        {
+            fragment = fragment.substring ( fragment.indexOf ( style_end) + style_end.length());
+        }
+        if ( included != null && included.add ( "script") == false)
+        {
+            return fragment;
+        }
+        StringBuffer result = new StringBuffer ( fragment.length() + get_script().length() + 40);
+        result.append ( "<script type=\"text/javascript\">\n").append ( get_script()).append ( "</script>\n");
+        return result.append ( fragment).toString();
+    }
+
+    private void
+    add ( int token_class, String value)
+    {
+        if ( value.length() == 0)
+        {
+            return;
+        }
+        if ( token_class != run_class)
+        {
+            end_run();
+            run_class = token_class;
+        }
+        run_length += value.length();
+        text.append ( value);
+    }
+
+    private void
+    end_run()
+    {
+        if ( run_length > 0)
+        {
+            varint ( run_class);
+            varint ( run_length);
+        }
+        run_length = 0;
+    }
+
+    private void
+    varint ( int value)
+    {
+        while ( value >= 0x80)
+        {
+            runs.write ( ( value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        runs.write ( value);
+    }
+
+    private static final char[] base64_digits =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private static void
+    base64 ( byte[] data, StringBuffer result)
+    {
+        for ( int i = 0; i < data.length; i += 3)
+        {
+            int b0 = data[i] & 0xff;
+            int b1 = i + 1 < data.length ? data[i + 1] & 0xff : 0;
+            int b2 = i + 2 < data.length ? data[i + 2] & 0xff : 0;
+            result.append ( base64_digits[b0 >> 2]);
+            result.append ( base64_digits[( ( b0 & 0x03) << 4) | ( b1 >> 4)]);
+            result.append ( i + 1 < data.length ? base64_digits[( ( b1 & 0x0f) << 2) | ( b2 >> 6)] : '=');
+            result.append ( i + 2 < data.length ? base64_digits[b2 & 0x3f] : '=');
+        }
+    }
+
+    private static synchronized String
+    get_script()
+    {
+        if ( script == null)
+        {
+            StringBuffer result = new StringBuffer();
+            InputStream stream = ColorCodeCompact.class.getResourceAsStream ( "colorcode-compact.js");
+            if ( stream != null)
+            {
+                try
+                {
+                    Reader reader = new InputStreamReader ( stream, ColorCodeMarkup.UTF8);
+                    char[] buffer = new char[4096];
+                    int count;
+                    while ( ( count = reader.read ( buffer)) > 0)
+                    {
+                        result.append ( buffer, 0, count);
+                    }
+                    reader.close();
+                }
+                catch ( IOException ioe)
+                {
+                    result.setLength ( 0);
+                }
+            }
+            script = result.toString();
+        }
+        return script;
+    }
+
+    private static final String page_resources = "colorcode.compact.included";
+}
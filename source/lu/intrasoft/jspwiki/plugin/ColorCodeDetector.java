@@ -0,0 +1,296 @@
+package lu.intrasoft.jspwiki.plugin;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.MissingResourceException;
+import java.util.Properties;
+
+/**
+ *  ColorCodeDetector.java
+ *
+ *  ColorCodeDetector guesses the syntax of a text body from the keywords
+ *  of a set of candidate syntax resources.  The keyword lists of all the
+ *  candidates are merged into one table mapping each word to the set of
+ *  syntaxes it belongs to, so the body is scanned once, word by word, no
+ *  matter how many candidates there are.  Only a bounded prefix of the
+ *  body is examined, and results are cached by a digest of that prefix.
+ *
+ *  Detection is used for <code>syntax='auto'</code>, or when no syntax
+ *  is given and the system property <code>colorcode.autodetect</code> is
+ *  'true'.  The candidates are taken from the <code>syntax.candidates</code>
+ *  parameter, a comma-separated list of resource names.
+ */
+
+public class ColorCodeDetector
+{
+    public static final String AUTO = "auto";
+    public static final int PREFIX_LENGTH = 4096; // characters of the body examined
+
+    private static final String default_candidates = "c,java,sql,vm";
+    private static final int min_hits = 2;
+    private static final int max_detectors = 16;
+    private static final int max_results = 1024;
+    private static final int result_bytes = 160; // estimated heap per cached result
+
+    private static final Map detectors = new HashMap(); // candidate list -> ColorCodeDetector
+    private static final Map results = new LinkedHashMap ( 64, 0.75f, true)
+    {
+        protected boolean removeEldestEntry ( Map.Entry eldest)
+        {
+            return size() > max_results;
+        }
+    };
+
+    private static long detector_bytes = 0; // estimated heap of the detectors, guarded by detectors
+
+    /**
+     * The memory held by cached results and detectors, for ColorCodeGovernor
+     */
+    public static final ColorCodeFootprint FOOTPRINT = new ColorCodeFootprint()
+    {
+        public long
+        get_footprint()
+        {
+            long result;
+            synchronized ( results)
+            {
+                result = (long)results.size() * result_bytes;
+            }
+            synchronized ( detectors)
+            {
+                return result + detector_bytes;
+            }
+        }
+
+        public long
+        shrink ( long bytes)
+        {
+            long released;
+            synchronized ( results)
+            {
+                released = (long)results.size() * result_bytes;
+                results.clear();
+            }
+            if ( released < bytes)
+            {
+                synchronized ( detectors)
+                {
+                    released += detector_bytes;
+                    detectors.clear();
+                    detector_bytes = 0;
+                }
+            }
+            return released;
+        }
+    };
+
+    private final String[] names;
+    private long footprint = 0; // estimated heap of the word tables
+    private final Map exact_words = new HashMap(); // word -> int[] of syntax indexes, case-sensitive syntaxes
+    private final Map folded_words = new HashMap(); // lower-cased word -> int[], case-insensitive syntaxes
+
+    private ColorCodeDetector ( String[] names)
+    {
+        this.names = names;
+        for ( int i = 0; i < names.length; i++)
+        {
+            names[i] = names[i].trim();
+            load_keywords ( i);
+        }
+    }
+
+    /**
+     * Should the syntax be detected, given the value of the <code>syntax</code>
+     * parameter?
+     *
+     * @param syntax_name the syntax parameter, possibly null
+     * @return true if detection is wanted
+     */
+    public static boolean
+    is_requested ( String syntax_name)
+    {
+        if ( syntax_name == null)
+        {
+            return Boolean.getBoolean ( "colorcode.autodetect");
+        }
+        return syntax_name.equalsIgnoreCase ( AUTO);
+    }
+
+    /**
+     * Detect the syntax of a text body
+     *
+     * @param body the text to be formatted
+     * @param params the plugin parameters, for <code>syntax.candidates</code>
+     * @return the name of the best-matching syntax resource, or null if none
+     *         matched convincingly
+     */
+    public static String
+    detect ( String body, Map params)
+    {
+        String candidates = (String)params.get ( syntax_candidates);
+        if ( candidates == null || candidates.length() == 0)
+        {
+            candidates = default_candidates;
+        }
+        int end = Math.min ( body.length(), PREFIX_LENGTH);
+        String key = candidates + '|' + ColorCodeCache.digest ( body.substring ( 0, end));
+        synchronized ( results)
+        {
+            if ( results.containsKey ( key))
+            {
+                return (String)results.get ( key);
+            }
+        }
+        String result = get_detector ( candidates).classify ( body, end);
+        synchronized ( results)
+        {
+            results.put ( key, result);
+        }
+        return result;
+    }
+
+    private static ColorCodeDetector
+    get_detector ( String candidates)
+    {
+        synchronized ( detectors)
+        {
+            ColorCodeDetector detector = (ColorCodeDetector)detectors.get ( candidates);
+            if ( detector == null)
+            {
+                detector = new ColorCodeDetector ( candidates.split ( ","));
+                if ( detectors.size() >= max_detectors)
+                {
+                    detectors.clear();
+                    detector_bytes = 0;
+                }
+                detectors.put ( candidates, detector);
+                detector_bytes += detector.footprint;
+            }
+            return detector;
+        }
+    }
+
+    /**
+     * Scan the first <code>end</code> characters of the body, counting the
+     * keyword hits of every candidate syntax in the one pass
+     */
+    private String
+    classify ( String body, int end)
+    {
+        int[] hits = new int[names.length];
+        int i = 0;
+        while ( i < end)
+        {
+            if ( is_word_char ( body.charAt ( i)) == false)
+            {
+                i++;
+                continue;
+            }
+            int word_start = i;
+            while ( i < end && is_word_char ( body.charAt ( i)))
+            {
+                i++;
+            }
+            String word = body.substring ( word_start, i);
+            count ( (int[])exact_words.get ( word), hits);
+            if ( folded_words.isEmpty() == false)
+            {
+                count ( (int[])folded_words.get ( word.toLowerCase()), hits);
+            }
+        }
+        int best = -1;
+        for ( int s = 0; s < hits.length; s++)
+        {
+            if ( hits[s] >= min_hits && ( best < 0 || hits[s] > hits[best]))
+            {
+                best = s;
+            }
+        }
+        return best < 0 ? null : names[best];
+    }
+
+    private static void
+    count ( int[] syntaxes, int[] hits)
+    {
+        if ( syntaxes == null)
+        {
+            return;
+        }
+        for ( int s = 0; s < syntaxes.length; s++)
+        {
+            hits[syntaxes[s]]++;
+        }
+    }
+
+    private static boolean
+    is_word_char ( char c)
+    {
+        return Character.isLetterOrDigit ( c) || c == '_';
+    }
+
+    /**
+     * Add the keywords of candidate syntax <code>index</code> to the word tables
+     */
+    private void
+    load_keywords ( int index)
+    {
+        Properties props;
+        try
+        {
+            props = ColorCodeSyntax.get ( names[index]).get_properties(); // including inherited keywords
+        }
+        catch ( MissingResourceException mre)
+        {
+            return;
+        }
+        String kwords = props.getProperty ( "colorcode.keywords");
+        if ( kwords == null)
+        {
+            return;
+        }
+        boolean ignore_case = Boolean.valueOf ( props.getProperty ( "colorcode.keyword.ignorecase")).booleanValue();
+        String[] words = kwords.split ( ",");
+        for ( int i = 0; i < words.length; i++)
+        {
+            String word = words[i].trim();
+            if ( word.length() == 0)
+            {
+                continue;
+            }
+            footprint += 2 * word.length() + 96;
+            if ( ignore_case)
+            {
+                add ( folded_words, word.toLowerCase(), index);
+            }
+            else
+            {
+                add ( exact_words, word, index);
+            }
+        }
+    }
+
+    private static void
+    add ( Map table, String word, int index)
+    {
+        int[] syntaxes = (int[])table.get ( word);
+        if ( syntaxes == null)
+        {
+            table.put ( word, new int[] { index });
+            return;
+        }
+        for ( int i = 0; i < syntaxes.length; i++)
+        {
+            if ( syntaxes[i] == index)
+            {
+                return; // listed twice in the same syntax
+            }
+        }
+        int[] grown = new int[syntaxes.length + 1];
+        System.arraycopy ( syntaxes, 0, grown, 0, syntaxes.length);
+        grown[syntaxes.length] = index;
+        table.put ( word, grown);
+    }
+
+    private static final String syntax_candidates = "syntax.candidates";
+}
@@ -0,0 +1,26 @@
+package lu.intrasoft.jspwiki.plugin;
+
+import java.util.Map;
+
+/**
+ *  ColorCodeEngine.java
+ *
+ *  ColorCodeEngine is implemented by the classes that turn a text body
+ *  into a colorized HTML fragment, so that alternative implementations can
+ *  be run side by side (see ColorCodeShadow).  Engines hold per-render
+ *  state: use a new instance for every render.
+ */
+
+public interface ColorCodeEngine
+{
+    /**
+     * Given a text body to be formatted, and a set of parameters specifying
+     * the syntax, return an HTML marked-up version of the text
+     * 
+     * @param body the plain text to be formatted
+     * @param params immediate syntax and formatting values
+     * @return the HTML fragment
+     */
+    public String
+    format ( String body, Map params);
+}
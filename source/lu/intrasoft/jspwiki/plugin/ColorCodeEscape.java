@@ -0,0 +1,121 @@
+package lu.intrasoft.jspwiki.plugin;
+
+/**
+ *  ColorCodeEscape.java
+ *
+ *  ColorCodeEscape replaces the characters with a meaning in HTML text,
+ *  '&lt;', '&gt;' and '&amp;', by their entity references.  The text is
+ *  scanned once; most tokens contain none of the three, and these are
+ *  returned as they are, without copying.
+ *
+ *  The scan is scalar.  Tokens are mostly a few characters long, too
+ *  short to fill a vector, and the longer scans over the input, for
+ *  delimiters and word boundaries, are done inside StreamTokenizer, where
+ *  they cannot be replaced.
+ */
+
+public final class ColorCodeEscape
+{
+    private static final boolean[] special = new boolean['>' + 1];
+
+    static
+    {
+        special['<'] = true;
+        special['>'] = true;
+        special['&'] = true;
+    }
+
+    private ColorCodeEscape()
+    {
+    }
+
+    /**
+     * @param c a character
+     * @return true if <code>c</code> must be escaped in HTML text
+     */
+    public static boolean
+    is_special ( char c)
+    {
+        return c <= '>' && special[c];
+    }
+
+    /**
+     * @param text the text to be escaped
+     * @return the index of the first character to be escaped, or -1 if none
+     */
+    public static int
+    first_special ( String text)
+    {
+        int length = text.length();
+        for ( int i = 0; i < length; i++)
+        {
+            char c = text.charAt ( i);
+            if ( c <= '>' && special[c])
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param text the text to be escaped
+     * @return the escaped text; <code>text</code> itself if nothing needed escaping
+     */
+    public static String
+    escape ( String text)
+    {
+        int first = first_special ( text);
+        if ( first < 0)
+        {
+            return text;
+        }
+        StringBuffer result = new StringBuffer ( text.length() + 16);
+        result.append ( text.substring ( 0, first));
+        append ( text.toCharArray(), first, text.length(), result);
+        return result.toString();
+    }
+
+    /**
+     * Append characters <code>start</code> to <code>end</code> of
+     * <code>text</code>, escaped
+     */
+    public static void
+    append ( char[] text, int start, int end, StringBuffer result)
+    {
+        int run = start; // start of the characters not yet appended
+        for ( int i = start; i < end; i++)
+        {
+            char c = text[i];
+            if ( c <= '>' && special[c])
+            {
+                result.append ( text, run, i - run);
+                append ( c, result);
+                run = i + 1;
+            }
+        }
+        result.append ( text, run, end - run);
+    }
+
+    /**
+     * Append a character, escaped
+     */
+    public static void
+    append ( char c, StringBuffer result)
+    {
+        switch ( c)
+        {
+            case '<':
+                result.append ( "&lt;");
+                break;
+            case '>':
+                result.append ( "&gt;");
+                break;
+            case '&':
+                result.append ( "&amp;");
+                break;
+            default:
+                result.append ( c);
+        }
+    }
+}
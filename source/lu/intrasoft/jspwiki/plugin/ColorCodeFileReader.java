@@ -0,0 +1,127 @@
+package lu.intrasoft.jspwiki.plugin;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ *  ColorCodeFileReader.java
+ *
+ *  ColorCodeFileReader reads a file through its FileChannel, decoding it
+ *  incrementally: the file is read into a small byte buffer and decoded
+ *  into a small character buffer, so the heap used does not depend on the
+ *  size of the file.  Malformed input is replaced, as when decoding a
+ *  String.
+ *
+ *  The file is not memory-mapped: a mapping is only released when it is
+ *  garbage collected, so it would hold address space, and on Windows keep
+ *  the file locked against edits, long after the render.
+ */
+
+public class ColorCodeFileReader
+    extends Reader
+{
+    private static final int byte_buffer_size = 64 * 1024;
+    private static final int char_buffer_size = 8 * 1024;
+
+    private final FileInputStream stream;
+    private final FileChannel channel;
+    private final CharsetDecoder decoder;
+    private final ByteBuffer bytes = ByteBuffer.allocate ( byte_buffer_size);
+    private final CharBuffer chars = CharBuffer.allocate ( char_buffer_size);
+
+    private boolean end_of_input = false;
+    private boolean eof = false;
+
+    public ColorCodeFileReader ( File file, Charset charset)
+        throws IOException
+    {
+        stream = new FileInputStream ( file);
+        channel = stream.getChannel();
+        decoder = charset.newDecoder()
+                         .onMalformedInput ( CodingErrorAction.REPLACE)
+                         .onUnmappableCharacter ( CodingErrorAction.REPLACE);
+        bytes.flip(); // empty
+        chars.flip();
+    }
+
+    public int
+    read()
+        throws IOException
+    {
+        if ( chars.hasRemaining() == false && fill() == false)
+        {
+            return -1;
+        }
+        return chars.get();
+    }
+
+    public int
+    read ( char[] buffer, int offset, int length)
+        throws IOException
+    {
+        if ( length == 0)
+        {
+            return 0;
+        }
+        if ( chars.hasRemaining() == false && fill() == false)
+        {
+            return -1;
+        }
+        int count = Math.min ( length, chars.remaining());
+        chars.get ( buffer, offset, count);
+        return count;
+    }
+
+    /**
+     * Decode the next characters into the character buffer
+     *
+     * @return false at end of file
+     */
+    private boolean
+    fill()
+        throws IOException
+    {
+        if ( eof)
+        {
+            return false;
+        }
+        chars.clear();
+        while ( chars.position() == 0 && eof == false)
+        {
+            if ( decoder.decode ( bytes, chars, end_of_input).isOverflow())
+            {
+                break;
+            }
+            if ( end_of_input)
+            {
+                decoder.flush ( chars);
+                eof = true;
+            }
+            else
+            {
+                // keeps the bytes of a character split across reads
+                bytes.compact();
+                end_of_input = channel.read ( bytes) < 0;
+                bytes.flip();
+            }
+        }
+        chars.flip();
+        return chars.hasRemaining();
+    }
+
+    public void
+    close()
+        throws IOException
+    {
+        channel.close();
+        stream.close();
+    }
+}
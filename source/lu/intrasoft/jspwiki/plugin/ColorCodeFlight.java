@@ -0,0 +1,200 @@
+package lu.intrasoft.jspwiki.plugin;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ecyrd.jspwiki.plugin.PluginException;
+
+/**
+ *  ColorCodeFlight.java
+ *
+ *  ColorCodeFlight coalesces concurrent renders of the same input: the
+ *  first request for a key runs the render, and requests for the same key
+ *  arriving while it is in flight wait for its result instead of rendering
+ *  the same text again, as happens when a popular page has just been
+ *  edited and every request misses the cache at once.
+ *
+ *  A waiting request gives up after <code>colorcode.flight.wait</code>
+ *  milliseconds (default 2000), or if the first render fails, and renders
+ *  for itself.  Each flight also carries the identity of its input (the
+ *  body text, for example) so that keys built from a hash never share a
+ *  result between different inputs.  The counters are logged by
+ *  ColorCodeStatistics.
+ */
+
+public class ColorCodeFlight
+{
+    public static final ColorCodeFlight RENDERS =
+        new ColorCodeFlight ( Integer.getInteger ( "colorcode.flight.wait", 2000).longValue());
+
+    private final long max_wait;
+    private final Map flights = new HashMap(); // key -> Flight
+
+    private final AtomicLong leaders = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    private static final class Flight
+    {
+        final Object identity;
+        final FutureTask task;
+
+        Flight ( Object identity, FutureTask task)
+        {
+            this.identity = identity;
+            this.task = task;
+        }
+    }
+
+    public ColorCodeFlight ( long max_wait)
+    {
+        this.max_wait = max_wait;
+    }
+
+    /**
+     * Run a render, or wait for the identical one already in flight
+     *
+     * @param key the cache key of the render
+     * @param identity the input the key stands for, compared with equals()
+     * @param render computes the HTML fragment
+     * @return the HTML fragment
+     * @throws PluginException if the render fails
+     */
+    public String
+    run ( String key, Object identity, Callable render)
+        throws PluginException
+    {
+        Flight flight;
+        boolean leader = false;
+        synchronized ( flights)
+        {
+            flight = (Flight)flights.get ( key);
+            if ( flight == null)
+            {
+                flight = new Flight ( identity, new FutureTask ( render));
+                flights.put ( key, flight);
+                leader = true;
+            }
+        }
+
+        if ( leader)
+        {
+            leaders.incrementAndGet();
+            try
+            {
+                flight.task.run();
+            }
+            finally
+            {
+                synchronized ( flights)
+                {
+                    flights.remove ( key);
+                }
+            }
+            return get ( flight.task);
+        }
+
+        if ( flight.identity.equals ( identity) == false)
+        {
+            return call ( render); // a different input with the same key hash
+        }
+        coalesced.incrementAndGet();
+        try
+        {
+            return (String)flight.task.get ( max_wait, TimeUnit.MILLISECONDS);
+        }
+        catch ( TimeoutException te)
+        {
+            timeouts.incrementAndGet();
+        }
+        catch ( ExecutionException ee)
+        {
+            fallbacks.incrementAndGet(); // rendered again, to report this request's own failure
+        }
+        catch ( InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            fallbacks.incrementAndGet();
+        }
+        return call ( render);
+    }
+
+    /**
+     * @return the coalescing counters: in flight, leaders (renders run),
+     *         coalesced (requests served by another's render), timeouts and
+     *         fallbacks (waiting requests that rendered for themselves)
+     */
+    public Map
+    get_statistics()
+    {
+        Map result = new LinkedHashMap();
+        synchronized ( flights)
+        {
+            result.put ( "inflight", Long.valueOf ( flights.size()));
+        }
+        result.put ( "leaders", Long.valueOf ( leaders.get()));
+        result.put ( "coalesced", Long.valueOf ( coalesced.get()));
+        result.put ( "timeouts", Long.valueOf ( timeouts.get()));
+        result.put ( "fallbacks", Long.valueOf ( fallbacks.get()));
+        return result;
+    }
+
+    private static String
+    get ( FutureTask task)
+        throws PluginException
+    {
+        try
+        {
+            return (String)task.get();
+        }
+        catch ( ExecutionException ee)
+        {
+            throw unwrap ( ee.getCause());
+        }
+        catch ( InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new PluginException ( "Interrupted while rendering");
+        }
+    }
+
+    private static String
+    call ( Callable render)
+        throws PluginException
+    {
+        try
+        {
+            return (String)render.call();
+        }
+        catch ( Exception e)
+        {
+            throw unwrap ( e);
+        }
+    }
+
+    private static PluginException
+    unwrap ( Throwable cause)
+    {
+        if ( cause instanceof PluginException)
+        {
+            return (PluginException)cause;
+        }
+        if ( cause instanceof RuntimeException)
+        {
+            throw (RuntimeException)cause;
+        }
+        if ( cause instanceof Error)
+        {
+            throw (Error)cause;
+        }
+        return new PluginException ( "Could not render: " + cause);
+    }
+}
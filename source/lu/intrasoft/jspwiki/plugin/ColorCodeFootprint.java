@@ -0,0 +1,28 @@
+package lu.intrasoft.jspwiki.plugin;
+
+/**
+ *  ColorCodeFootprint.java
+ *
+ *  ColorCodeFootprint is implemented by the caches kept by the plugin,
+ *  so that ColorCodeGovernor can account for their memory and shrink them.
+ *  Sizes are estimates of the heap retained, kept from running counters:
+ *  both methods must be cheap.
+ */
+
+public interface ColorCodeFootprint
+{
+    /**
+     * @return the estimated heap bytes retained by the cache
+     */
+    public long
+    get_footprint();
+
+    /**
+     * Release cached entries, least valuable first
+     *
+     * @param bytes the number of bytes to release, if possible
+     * @return the estimated number of bytes released
+     */
+    public long
+    shrink ( long bytes);
+}
@@ -0,0 +1,258 @@
+package lu.intrasoft.jspwiki.plugin;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ *  ColorCodeGovernor.java
+ *
+ *  ColorCodeGovernor keeps the memory held by all the plugin's caches
+ *  within one budget, <code>colorcode.memory.budget</code> bytes (default
+ *  32M).  The caches report their estimated footprint (see
+ *  ColorCodeFootprint), and whenever one of them grows the total is
+ *  checked; if it is over budget, the caches are shrunk in priority order,
+ *  cheapest to rebuild first:
+ *  <ol>
+ *  <li>detection - the syntax detection results</li>
+ *  <li>fragments - the rendered fragment cache (its on-heap part)</li>
+ *  <li>fallbacks - the previous fragment of each source</li>
+ *  <li>templates - compiled header and footer markup</li>
+ *  <li>profiles - compiled syntax profiles and their styles</li>
+ *  </ol>
+ *  The output buffers pooled by live threads are reported as well, but do
+ *  not count toward the budget, as they cannot be reclaimed from the
+ *  threads holding them; they are not pooled at all while memory is short.
+ *
+ *  The governor also reads, at most every 100ms, how full the heap's old
+ *  generation was after its last collection.  Above
+ *  <code>colorcode.memory.threshold</code> of its maximum (default 0.85;
+ *  0 to disable), the caches are shrunk to
+ *  <code>colorcode.memory.pressure.keep</code> of the budget (default
+ *  0.25) at their next check, and no new fragment is kept on the heap
+ *  until usage is back under the threshold.  The memory pools are only
+ *  read: no JVM-wide usage threshold is set and no listener registered,
+ *  so nothing outlives the web application.  When the caches are first
+ *  shrunk under pressure, their footprints are logged; they are also
+ *  logged periodically by ColorCodeStatistics.
+ */
+
+public class ColorCodeGovernor
+{
+    private static final long budget = Long.getLong ( "colorcode.memory.budget", 32 * 1024 * 1024).longValue();
+    private static final double threshold = parse_fraction ( System.getProperty ( "colorcode.memory.threshold"), 0.85);
+    private static final double pressure_keep = parse_fraction ( System.getProperty ( "colorcode.memory.pressure.keep"), 0.25);
+
+    private static final Logger logger = Logger.getLogger ( ColorCodeGovernor.class);
+
+    private static final List names = new ArrayList();
+    private static final List caches = new ArrayList(); // ColorCodeFootprint, in the order they are shrunk
+    private static final List reported_names = new ArrayList();
+    private static final List reported = new ArrayList(); // ColorCodeFootprint, outside the budget
+    private static final List watched_pools = new ArrayList(); // MemoryPoolMXBean
+    private static final long pressure_interval = 100; // ms between reads of the pools
+    private static volatile long pressure_read_at = 0;
+    private static volatile boolean pressure = false;
+    private static volatile boolean pressure_logged = false; // the footprints, since pressure began
+    private static final AtomicLong shrinks = new AtomicLong();
+    private static final AtomicLong pressure_events = new AtomicLong();
+    private static final AtomicLong released = new AtomicLong();
+
+    static
+    {
+        add ( "detection", ColorCodeDetector.FOOTPRINT);
+        add ( "fragments", ColorCodeCache.FRAGMENTS);
+        add ( "fallbacks", ColorCodeSource.FOOTPRINT);
+        add ( "templates", ColorCodeTemplate.FOOTPRINT);
+        add ( "profiles", ColorCodeSyntax.FOOTPRINT);
+        reported_names.add ( "buffers");
+        reported.add ( ColorCodeUtf8Output.FOOTPRINT);
+        find_heap_pools();
+    }
+
+    /**
+     * Check the caches' total footprint against the budget, shrinking them
+     * if it is over; called after a cache has grown
+     */
+    public static void
+    check()
+    {
+        if ( is_under_pressure())
+        {
+            if ( pressure_logged == false)
+            {
+                pressure_logged = true; // concurrent checks may both log
+                logger.warn ( "ColorCode: shrinking caches under heap pressure, footprints " + get_statistics());
+            }
+            shrink_to ( (long)( budget * pressure_keep));
+        }
+        else
+        {
+            pressure_logged = false;
+            if ( total() > budget)
+            {
+                shrink_to ( budget - budget / 8); // some room, so that the next puts do not shrink again
+            }
+        }
+    }
+
+    /**
+     * @return true if the heap's live data is over the threshold, and
+     *         caches should not grow
+     */
+    public static boolean
+    is_under_pressure()
+    {
+        long now = System.currentTimeMillis();
+        if ( now - pressure_read_at >= pressure_interval)
+        {
+            pressure_read_at = now; // concurrent readers may both read the pools, to the same effect
+            boolean over = read_pressure();
+            if ( over && pressure == false)
+            {
+                pressure_events.incrementAndGet();
+                logger.warn ( "ColorCode: heap usage over threshold, caches will be shrunk");
+            }
+            pressure = over;
+        }
+        return pressure;
+    }
+
+    /**
+     * @return the estimated footprint of each cache, in bytes, then of the
+     *         memory only reported, followed by the total of the caches, the
+     *         budget, and the counts of shrinks, of pressure events and of
+     *         bytes released
+     */
+    public static Map
+    get_statistics()
+    {
+        Map result = new LinkedHashMap();
+        long total = 0;
+        for ( int i = 0; i < caches.size(); i++)
+        {
+            long footprint = ((ColorCodeFootprint)caches.get ( i)).get_footprint();
+            result.put ( names.get ( i), Long.valueOf ( footprint));
+            total += footprint;
+        }
+        for ( int i = 0; i < reported.size(); i++)
+        {
+            result.put ( reported_names.get ( i), Long.valueOf ( ((ColorCodeFootprint)reported.get ( i)).get_footprint()));
+        }
+        result.put ( "total", Long.valueOf ( total));
+        result.put ( "budget", Long.valueOf ( budget));
+        result.put ( "shrinks", Long.valueOf ( shrinks.get()));
+        result.put ( "pressure.events", Long.valueOf ( pressure_events.get()));
+        result.put ( "released", Long.valueOf ( released.get()));
+        return result;
+    }
+
+    private static void
+    add ( String name, ColorCodeFootprint cache)
+    {
+        names.add ( name);
+        caches.add ( cache);
+    }
+
+    private static long
+    total()
+    {
+        long total = 0;
+        for ( int i = 0; i < caches.size(); i++)
+        {
+            total += ((ColorCodeFootprint)caches.get ( i)).get_footprint();
+        }
+        return total;
+    }
+
+    /**
+     * Shrink the caches in priority order until their total is no more
+     * than <code>target</code>
+     */
+    private static synchronized void
+    shrink_to ( long target)
+    {
+        long excess = total() - target;
+        if ( excess <= 0)
+        {
+            return;
+        }
+        shrinks.incrementAndGet();
+        for ( int i = 0; i < caches.size() && excess > 0; i++)
+        {
+            long freed = ((ColorCodeFootprint)caches.get ( i)).shrink ( excess);
+            released.addAndGet ( freed);
+            excess -= freed;
+        }
+    }
+
+    /**
+     * Find the heap pools that report their usage after a collection
+     * (the old generation)
+     */
+    private static void
+    find_heap_pools()
+    {
+        if ( threshold <= 0)
+        {
+            return;
+        }
+        Iterator pools = ManagementFactory.getMemoryPoolMXBeans().iterator();
+        while ( pools.hasNext())
+        {
+            MemoryPoolMXBean pool = (MemoryPoolMXBean)pools.next();
+            if ( pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()
+                 && pool.isUsageThresholdSupported()) // the young generation pools support neither
+            {
+                watched_pools.add ( pool);
+            }
+        }
+    }
+
+    /**
+     * @return true if any watched pool was over the threshold after its
+     *         last collection
+     */
+    private static boolean
+    read_pressure()
+    {
+        for ( int i = 0; i < watched_pools.size(); i++)
+        {
+            MemoryPoolMXBean pool = (MemoryPoolMXBean)watched_pools.get ( i);
+            MemoryUsage usage = pool.getCollectionUsage();
+            long max = pool.getUsage().getMax();
+            if ( usage != null && max > 0 && usage.getUsed() > max * threshold)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static double
+    parse_fraction ( String value, double fallback)
+    {
+        if ( value == null || value.length() == 0)
+        {
+            return fallback;
+        }
+        try
+        {
+            double result = Double.parseDouble ( value.trim());
+            return result < 0 || result > 1 ? fallback : result;
+        }
+        catch ( NumberFormatException nfe)
+        {
+            return fallback;
+        }
+    }
+}
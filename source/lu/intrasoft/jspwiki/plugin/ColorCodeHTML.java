@@ -1,6 +1,9 @@
 package lu.intrasoft.jspwiki.plugin;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PushbackReader;
+import java.io.Reader;
 import java.io.StreamTokenizer;
 import java.io.StringReader;
 import java.util.ArrayList;
@@ -11,9 +14,7 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.MissingResourceException;
 import java.util.Properties;
-import java.util.ResourceBundle;
-
-import org.apache.log4j.Logger;
+import java.util.Set;
 
 
 
@@ -29,15 +30,21 @@ import org.apache.log4j.Logger;
  */
 
 public class ColorCodeHTML
+    implements ColorCodeEngine
 {
-    private HashSet Keywords;
+    private Set Keywords; // maybe shared with the compiled syntax: only modified once copied
     private Properties syntax;
     private String syntax_name = "colorcode"; // default name used as div class name, if not set explicitly
-    private String newline;
+    private ColorCodeMarkup newline;
     private String space;
     private int tab_size;
     private int line_number = -1;
-    Logger logger;
+    ColorCodeTrace trace; // null unless this render is being traced
+    private ColorCodeProfile profile; // null unless this render is being profiled
+    private ColorCodeCompact compact; // null unless the compact form was requested
+
+    private static final int initial_capacity = 8 * 1024; // of the output, when the input size is unknown
+    private static final int max_initial_capacity = 256 * 1024;
     
     /**
      * Given a text body to be formatted, and a set of parameters specifying
@@ -58,72 +65,220 @@ public class ColorCodeHTML
         {
             return "" ;
         }
-        initialise ( params);
-        String formatted = process_body ( body);
-        
-        return get_start() + formatted + get_finish();
+        initialise ( params, body);
+        // a first guess at the size of the HTML; the buffer grows beyond it as needed
+        ColorCodeStringOutput output = new ColorCodeStringOutput ( (int)Math.min ( 4L * body.length() + 1024, max_initial_capacity));
+        render ( new StringReader ( body.trim()), output);
+        return output.toString();
     }
 
+    /**
+     * Format text read from a stream, as for <code>format ( body, params)</code>;
+     * the text is tokenized as it is read, and never held as a whole
+     * 
+     * @param body the plain text to be formatted
+     * @param params immediate syntax and formatting values
+     * @return the HTML fragment
+     * @throws IOException if the text cannot be read
+     */
+    public String
+    format ( Reader body, Map params)
+        throws IOException
+    {
+        PushbackReader input = new PushbackReader ( new ColorCodeTrimReader ( body), ColorCodeDetector.PREFIX_LENGTH);
+        initialise ( params, read_prefix ( input, params));
+        ColorCodeStringOutput output = new ColorCodeStringOutput ( initial_capacity);
+        render ( input, output);
+        return output.toString();
+    }
 
+    /**
+     * Format the text body as for <code>format ( body, params)</code>, writing
+     * the HTML fragment directly to a stream as UTF-8, for example to a
+     * servlet response; avoids building the fragment as a String and then
+     * re-encoding it
+     * 
+     * @param body the plain text to be formatted
+     * @param params immediate syntax and formatting values
+     * @param out the stream to write the UTF-8 encoded HTML fragment to
+     * @throws IOException if the stream cannot be written
+     */
+    public void
+    format ( String body, Map params, OutputStream out)
+        throws IOException
+    {
+        if( body == null )
+        {
+            return;
+        }
+        initialise ( params, body);
+        render ( new StringReader ( body.trim()), out);
+    }
 
     /**
-     * Load the properties that specify how to interpret the syntax of the text
-     * to be processed, and how to render it in HTML
+     * Format text read from a stream, writing the HTML fragment to a stream
+     * as UTF-8.  Both the text and the HTML are streamed, so the heap used
+     * is bounded whatever the size of the input
      * 
-     * @param params -- name/value pairs for the syntax and formatting properties 
+     * @param body the plain text to be formatted
+     * @param params immediate syntax and formatting values
+     * @param out the stream to write the UTF-8 encoded HTML fragment to
+     * @throws IOException if the text cannot be read or the stream written
+     */
+    public void
+    format ( Reader body, Map params, OutputStream out)
+        throws IOException
+    {
+        PushbackReader input = new PushbackReader ( new ColorCodeTrimReader ( body), ColorCodeDetector.PREFIX_LENGTH);
+        initialise ( params, read_prefix ( input, params));
+        render ( input, out);
+    }
+
+    /**
+     * Render into a stream, through the thread's pooled UTF-8 buffer
+     */
+    private void
+    render ( Reader body, OutputStream out)
+        throws IOException
+    {
+        ColorCodeUtf8Output output = ColorCodeUtf8Output.acquire ( out);
+        try
+        {
+            render ( body, output);
+            output.flush();
+        }
+        finally
+        {
+            output.release();
+        }
+    }
+
+    /**
+     * Read the start of the text, for syntax detection, and push it back
      * 
+     * @param input the text
+     * @param params the plugin parameters, naming the syntax
+     * @return up to <code>ColorCodeDetector.PREFIX_LENGTH</code> characters,
+     *         or null if the syntax is not to be detected
+     */
+    private String
+    read_prefix ( PushbackReader input, Map params)
+        throws IOException
+    {
+        if ( ColorCodeDetector.is_requested ( (String)params.get ( "syntax")) == false)
+        {
+            return null;
+        }
+        char[] prefix = new char[ColorCodeDetector.PREFIX_LENGTH];
+        int length = 0;
+        int count;
+        while ( length < prefix.length && ( count = input.read ( prefix, length, prefix.length - length)) > 0)
+        {
+            length += count;
+        }
+        input.unread ( prefix, 0, length);
+        return new String ( prefix, 0, length);
+    }
+
+    /**
+     * Render the header, formatted body and footer into the output
+     * 
+     * @param body the (trimmed) plain text to be formatted
+     * @param output destination for the HTML
      */
     private void
-    initialise (Map params)
+    render ( Reader body, ColorCodeOutput output)
     {
-        Keywords = new HashSet();
-        
-        // first, load the hard-coded property defaults:
-        syntax = default_properties();
-        
-        // get a logger if parameter "log='true'" is present:
-        String do_logging = (String)params.get ( "log");
-        if ( do_logging != null && do_logging.length() > 0)
+        if ( compact != null)
         {
-            if ( Boolean.valueOf(do_logging).booleanValue() == true)
+            process_body ( body, output);
+            compact.finish ( output);
+            if ( profile != null)
             {
-                logger = Logger.getLogger ( this.getClass());        
+                profile.finish ( output);
             }
+            return;
         }
+        long started = profile == null ? 0 : System.nanoTime();
+        ColorCodeMarkup[] header_footer = get_header_footer();
+        output.append ( header_footer[0]);
+        if ( profile != null)
+        {
+            profile.add ( ColorCodeProfile.HEADER_FOOTER, started);
+        }
+        process_body ( body, output);
+        output.append ( header_footer[1]);
+        if ( profile != null)
+        {
+            profile.finish ( output);
+        }
+    }
+
+
+
+    /**
+     * Load the properties that specify how to interpret the syntax of the text
+     * to be processed, and how to render it in HTML
+     * 
+     * @param params -- name/value pairs for the syntax and formatting properties 
+     * @param body -- the text to be formatted, used if the syntax is to be detected
+     */
+    private void
+    initialise (Map params, String body)
+    {
+        // start a profile if parameter "profile='true'" is present:
+        profile = ColorCodeProfile.create ( params);
+        long started = profile == null ? 0 : System.nanoTime();
+        // get a trace if parameter "log='true'" is present (and sampled):
+        trace = ColorCodeTrace.create ( params);
         
         // next, load properties defined by the syntax resource, if any:
         String syntax_name_property = (String)params.get ( "syntax");
+        if ( ColorCodeDetector.is_requested ( syntax_name_property))
+        {
+            syntax_name_property = ColorCodeDetector.detect ( body, params);
+            if ( trace != null)
+            {
+                trace.info ( "Detected syntax: " + syntax_name_property);
+            }
+        }
+        // the compiled syntax resource, if any, layered over the hard-coded defaults:
+        ColorCodeSyntax compiled = ColorCodeSyntax.get_defaults();
         if ( syntax_name_property != null)
         {
             syntax_name = syntax_name_property;
             try
             {
-                ResourceBundle props = ResourceBundle.getBundle ( syntax_name);
-                Enumeration keys = props.getKeys();
-                while ( keys.hasMoreElements())
-                {
-                    final String key = (String)keys.nextElement ();
-                    final String value = props.getString ( key);
-                    
-                    syntax.put ( key, value);
-                }
+                compiled = ColorCodeSyntax.get ( syntax_name);
             }
             catch ( MissingResourceException mre)
             {
-                log_error ( "Could not get resource: " + mre.getMessage());
+                if ( trace != null)
+                {
+                    trace.error ( "Could not get resource: " + mre.getMessage());
+                }
             }
         }
         
-        // save the keywords loaded from the resource for later...
-        String kwords = syntax.getProperty ( keywords);
-        // now set/reset properties from immediate parameters (may override resources)
+        // now set properties from immediate parameters, in a layer of their own (may override resources)
+        syntax = compiled.overlay();
         get_parameters ( params);
-        // finally, initialise the keywords from resource properties
-        set_keywords ( kwords);
-        // ...and add any keywords set in the immediate parameters:
-        set_keywords ( syntax.getProperty ( keywords));
+        header_footer_shared = params.containsKey ( start) == false
+                            && params.containsKey ( finish) == false
+                            && params.containsKey ( area_class) == false
+                            && params.containsKey ( area_bgcolor) == false
+                            && params.containsKey ( area_border) == false;
+        // finally, the keywords from resource properties, shared...
+        boolean ignore_case = Boolean.valueOf(syntax.getProperty ( keyword_ignorecase)).booleanValue();
+        Keywords = compiled.get_keywords ( ignore_case);
+        // ...unless keywords are added in the immediate parameters:
+        if ( syntax.containsKey ( keywords))
+        {
+            Keywords = new HashSet ( Keywords);
+            set_keywords ( syntax.getProperty ( keywords));
+        }
         
-        newline = syntax.getProperty ( newline_markup);
+        newline = new ColorCodeMarkup ( syntax.getProperty ( newline_markup) + "\n");
         space = syntax.getProperty ( space_markup);
         String tab_spaces_def = syntax.getProperty ( tabsize);
         tab_size = 4;
@@ -140,10 +295,22 @@ public class ColorCodeHTML
         }
         
         load_specials ( syntax);
+        // styles and indent markup are shared, except those the parameters change
+        styles = new HashMap();
+        restyled = ColorCodeSyntax.get_restyled ( syntax);
+        shared_styles = restyled == null ? null : compiled.get_styles();
+        indents = ColorCodeSyntax.shares_indents ( syntax) ? compiled.get_indents() : new ColorCodeMarkup[100];
+        compact = ColorCodeCompact.is_requested ( params) ? new ColorCodeCompact ( syntax, specials.keySet()) : null;
+        if ( profile != null)
+        {
+            profile.set_syntax_name ( syntax_name);
+            profile.add ( ColorCodeProfile.INITIALISE, started);
+        }
     }
 
     private HashMap specials;
     private boolean start_of_line = true;
+    private StreamTokenizer tokeniser; // of the body being processed, for the line number of traced tokens
     
     /**
      * Look for any definitions in the properties like:
@@ -157,30 +324,30 @@ public class ColorCodeHTML
     {
         specials = new HashMap();
         Properties default_special_properties = new Properties();
-        Iterator iter = properties.keySet().iterator();
-        while ( iter.hasNext())
+        Enumeration names = properties.propertyNames(); // including those of the layers below
+        while ( names.hasMoreElements())
         {
-            String key = ((String)iter.next()).toLowerCase();
+            String key = ((String)names.nextElement()).toLowerCase();
             if ( key.startsWith ( "colorcode.special.") && key.endsWith ( ".pattern")) 
             {
                 String name = key.substring ( 18, key.length()-8);
                 String pattern = properties.getProperty ( key);    
                 specials.put ( name, pattern);
-                if ( properties.containsKey ( "colorcode.special." + name + ".font.color") == false)
+                if ( properties.getProperty ( "colorcode.special." + name + ".font.color") == null)
                 {
                     default_special_properties.put ( "colorcode.special." + name + ".font.color", default_special_font_color);
                 }
-                if ( properties.containsKey ( "colorcode.special." + name + ".font.bold") == false)
+                if ( properties.getProperty ( "colorcode.special." + name + ".font.bold") == null)
                 {
                     default_special_properties.put ( "colorcode.special." + name + ".font.bold", default_special_font_bold);
                 }
-                if ( properties.containsKey ( "colorcode.special." + name + ".font.italic") == false)
+                if ( properties.getProperty ( "colorcode.special." + name + ".font.italic") == null)
                 {
                     default_special_properties.put ( "colorcode.special." + name + ".font.italic", default_special_font_italic);
                 }
             }
         }
-        iter = default_special_properties.keySet().iterator();
+        Iterator iter = default_special_properties.keySet().iterator();
         while ( iter.hasNext())
         {
             String key = (String)iter.next();
@@ -219,29 +386,37 @@ public class ColorCodeHTML
      * Parse the supplied text, identifying the syntactic elements and
      * render then according to the configuration
      * 
-     * @param body plain text to render
-     * 
-     * @returns HTML equivalent of the input body
+     * @param body plain text to render, with leading and trailing white space removed
+     * @param result destination for the HTML equivalent of the input body
      */
-    private String
-    process_body ( String body)
+    private void
+    process_body ( Reader body, ColorCodeOutput result)
     {
-        StringBuffer result = new StringBuffer ( "");        
-        StreamTokenizer tokeniser = new SyntaxTokenizer ( new StringReader ( body.trim()), syntax);
+        tokeniser = new SyntaxTokenizer ( body, syntax);
         if ( line_number > -1)
         {
-            result.append ( render_token ( "colorcode.number", ""+(line_number++)+space));
+            render_line_number ( result);
         }
         do
         {
             try
             {
+                long started = profile == null ? 0 : System.nanoTime();
                 int token = tokeniser.nextToken();
                 if ( token == StreamTokenizer.TT_EOF)
                 {
                     break;
                 }
-                result.append ( process_token ( tokeniser, token));
+                if ( profile != null)
+                {
+                    profile.add ( ColorCodeProfile.TOKENIZE, started);
+                    started = System.nanoTime();
+                }
+                process_token ( tokeniser, token, result);
+                if ( profile != null)
+                {
+                    profile.add ( ColorCodeProfile.RENDER, started);
+                }
             }
             catch ( IOException ex)
             {
@@ -249,8 +424,6 @@ public class ColorCodeHTML
             }
         }
         while ( true);
-        
-        return result.toString();
     }
 
 
@@ -261,21 +434,18 @@ public class ColorCodeHTML
      * 
      * @param tokeniser -- the tokenizer parsing the text
      * @param token -- the type or value of the currently-read token
-     * 
-     * @returns a StringBuffer holding the current tokens HTML representation
+     * @param result -- destination for the token's HTML representation
      */
-    private StringBuffer
-    process_token ( StreamTokenizer tokeniser, int token)
+    private void
+    process_token ( StreamTokenizer tokeniser, int token, ColorCodeOutput result)
     {
         boolean is_line_start = start_of_line;
         start_of_line = false;
-        StringBuffer result = new StringBuffer();
         String value = "";
         switch ( token)
         {
             case StreamTokenizer.TT_NUMBER:
                 double number = tokeniser.nval;
-                log_info ( "seen number: [" + number + "]");
                 Double d = new Double ( number);
                 value = ""+d.longValue();
 /*              value = Double.toString ( number);
@@ -283,7 +453,7 @@ public class ColorCodeHTML
                 {
                     value = value.substring ( 0, value.length()-2);
                 }*/
-                result.append ( render_token ( "colorcode.number", value));
+                render_token ( "colorcode.number", value, result);
                 break;
                 
             case StreamTokenizer.TT_WORD:
@@ -295,34 +465,49 @@ public class ColorCodeHTML
                 {
                     value = tokeniser.sval;
                 }
-                log_info ( "seen word: [" + value + "]");
                 if ( Keywords.contains ( value)) // token is a keyword
                 {
-                    result.append ( render_token ( "colorcode.keyword", tokeniser.sval));
+                    render_token ( "colorcode.keyword", tokeniser.sval, result);
                 }
                 else
                 {
                     value = tokeniser.sval;
                     if ( render_special ( value, is_line_start, result) == false)
                     {
-                        result.append ( render_token ( "colorcode.normal", value));
+                        render_token ( "colorcode.normal", value, result);
                     }
                 }
                 break;
                 
             case StreamTokenizer.TT_EOL:
-                result.append ( newline + "\n" );
+                if ( profile != null)
+                {
+                    profile.count ( "newline");
+                }
+                trace_token ( "newline", "\\n");
+                if ( compact != null)
+                {
+                    compact.text ( "\n");
+                }
+                else
+                {
+                    result.append ( newline);
+                }
                 if ( line_number > -1)
                 {
-                    result.append ( render_token ( "colorcode.number", ""+(line_number++)+space));
+                    render_line_number ( result);
                 }
                 start_of_line = true;
                 break;
                 
+            case SyntaxTokenizer.TT_SYMBOLS:
+                render_token ( "colorcode.symbol", tokeniser.sval, result);
+                break;
+                
             case '\'':
             case '\"':
                 String quote = Character.toString ( (char)token);
-                result.append ( render_token ( "colorcode.string", quote+tokeniser.sval+quote));
+                render_token ( "colorcode.string", quote+tokeniser.sval+quote, result);
                 break;
             case ' ':
                 int space_count = 1;
@@ -345,19 +530,43 @@ public class ColorCodeHTML
                     space_count++;
                 }
                 
-                result.append ( "<font color=\"" + syntax.getProperty ( area_bgcolor) + "\">"
-                            + make_indent ( space_count) + syntax.getProperty ( font_color_end));
+                if ( profile != null)
+                {
+                    profile.count ( "whitespace");
+                }
+                if ( trace != null && trace.is_enabled ( ColorCodeTrace.TOKEN))
+                {
+                    trace_token ( "whitespace", blanks ( space_count));
+                }
+                if ( compact != null)
+                {
+                    compact.text ( blanks ( space_count));
+                }
+                else
+                {
+                    result.append ( make_indent ( space_count));
+                }
                 break;
                 
             case '\t':
-                result.append ( "<font color=\"" + syntax.getProperty ( area_bgcolor) + "\">"
-                        + make_indent ( tab_size) + syntax.getProperty ( font_color_end));
+                if ( profile != null)
+                {
+                    profile.count ( "whitespace");
+                }
+                trace_token ( "whitespace", "\\t");
+                if ( compact != null)
+                {
+                    compact.text ( blanks ( tab_size));
+                }
+                else
+                {
+                    result.append ( make_indent ( tab_size));
+                }
                 break;
                 
             default:
-                result.append ( render_token ( "colorcode.symbol", Character.toString ( (char)token)));
+                render_token ( "colorcode.symbol", Character.toString ( (char)token), result);
         }
-        return result;
     }
     
 
@@ -371,13 +580,17 @@ public class ColorCodeHTML
      * @return true is value is 'special'
      */
     private boolean
-    render_special ( String value, boolean is_line_start, StringBuffer output)
+    render_special ( String value, boolean is_line_start, ColorCodeOutput output)
     {
         if ( specials == null || specials.isEmpty ())
         {
             return false;
         }
-        log_info ( "Is '" + value + "' special?" );
+        boolean tracing = trace != null && trace.is_enabled ( ColorCodeTrace.INFO);
+        if ( tracing)
+        {
+            trace.info ( "Is '" + value + "' special?");
+        }
         Iterator iter = specials.keySet().iterator();
         while ( iter.hasNext())
         {
@@ -387,21 +600,34 @@ public class ColorCodeHTML
             {
                 continue;
             }
+            if ( profile != null)
+            {
+                profile.count_special_attempt();
+            }
             
             if ( value.matches ( pattern))
             {
                 boolean start_anchor = pattern.charAt(0) == '^';
                 if ( start_anchor == true && is_line_start == false)
                 {
-                    log_info ( "Matches, but not start-of-line (^ anchor present in pattern)");
+                    if ( tracing)
+                    {
+                        trace.info ( "Matches, but not start-of-line (^ anchor present in pattern)");
+                    }
                     continue;
                 }
-                output.append ( render_token ( "colorcode.special." + name, value));
-                log_info ( "Matches " + name);
+                render_token ( "colorcode.special." + name, value, output);
+                if ( tracing)
+                {
+                    trace.info ( "Matches " + name);
+                }
                 return true;
             }
         }
-        log_info ( "No match");
+        if ( tracing)
+        {
+            trace.info ( "No match");
+        }
         return false;
     }
 
@@ -430,24 +656,6 @@ public class ColorCodeHTML
         }
     }
     
-    private void
-    log_info ( String message)
-    {
-        if ( logger != null)
-        {
-            logger.info ( message);
-        }
-    }
-
-    private void
-    log_error ( String message)
-    {
-        if ( logger != null)
-        {
-            logger.error ( message);
-        }
-    }    
-
 
     /**
      * Create a set of 'reasonable' default configuration values, to
@@ -455,7 +663,7 @@ public class ColorCodeHTML
      * 
      * @returns a Properties set with the default proeprty values
      */
-    private Properties
+    static Properties
     default_properties()
     {      
         Properties result = new Properties();
@@ -507,45 +715,159 @@ public class ColorCodeHTML
     }
 
 
-    private String[] indents = new String[100];
+    private ColorCodeMarkup[] indents; // shared with the compiled syntax, unless parameters change the markup
     /**
-     * Utility to return an indentation string for the number of
+     * Utility to return the indentation markup for the number of
      * spaces specified
      * 
      * @param level number of spaces to indent
-     * @return HTML string representing <code>level</code> spaces
+     * @return HTML markup representing <code>level</code> spaces
      */
-    private String 
+    private ColorCodeMarkup 
     make_indent ( int level)
     {
-        String result = indents[level];
+        ColorCodeMarkup result = level < indents.length ? indents[level] : null;
         if ( result == null)
         {
-            result = "";
+            StringBuffer markup = new StringBuffer ( "<font color=\"" + syntax.getProperty ( area_bgcolor) + "\">");
             for ( int i = 0; i < level; i++)
             {
-                result += space;
+                markup.append ( space);
+            }
+            markup.append ( syntax.getProperty ( font_color_end));
+            result = new ColorCodeMarkup ( markup.toString());
+            if ( level < indents.length)
+            {
+                indents[level] = result;
             }
-            indents[level] = result;
         }
         return result;
     }
     
     /**
-     * Render a token of type <code>key</code> with the supplied <code>value/code>;
-     * this method appends omto <code>key</code> to reference the appropriate confuration
-     * properties for that token type.  For example, "colorcode.keyword" is 
+     * @return <code>count</code> spaces, for the compact form's white space
+     */
+    private static String
+    blanks ( int count)
+    {
+        StringBuffer result = new StringBuffer ( count);
+        for ( int i = 0; i < count; i++)
+        {
+            result.append ( ' ');
+        }
+        return result.toString();
+    }
+
+    private HashMap styles; // token class name -> ColorCodeStyle, for this render
+    private Map shared_styles; // the compiled syntax's styles, if they apply: synchronized on itself
+    private Set restyled; // the token classes whose style the parameters change
+
+    /**
+     * Render a token of type <code>key</code> with the supplied <code>value/code>,
+     * using the markup of the token class's style
+     * 
+     * @param key -- base identity of the token's class
+     * @param value -- the token's value
+     * @param output -- destination for the token's HTML
+     */
+    private void
+    render_token ( String key, String value, ColorCodeOutput output)
+    {
+        ColorCodeStyle style = get_style ( key);
+        if ( profile != null)
+        {
+            profile.count ( key);
+        }
+        trace_token ( key, value);
+        if ( compact != null)
+        {
+            compact.token ( key, style.fold ( value));
+            return;
+        }
+        String out_value = ColorCodeEscape.escape ( style.fold ( value));
+        output.append ( style.get_prefix());
+        output.append ( out_value);
+        output.append ( style.get_suffix());
+    }
+
+    /**
+     * Log a per-token event, if the trace is at the TOKEN level; callers
+     * that must build the value test the level first
+     * 
+     * @param key -- the token's class, e.g. "colorcode.keyword", or "whitespace" or "newline"
+     * @param value -- the token's text
+     */
+    private void
+    trace_token ( String key, String value)
+    {
+        if ( trace != null && trace.is_enabled ( ColorCodeTrace.TOKEN))
+        {
+            trace.token ( tokeniser.lineno(), key, value);
+        }
+    }
+
+    /**
+     * Render the next line number, in the number style; the space after
+     * it is markup, not text, so it is not escaped
+     * 
+     * @param output -- destination for the line number's HTML
+     */
+    private void
+    render_line_number ( ColorCodeOutput output)
+    {
+        if ( compact != null)
+        {
+            compact.token ( "colorcode.number", ""+(line_number++)+" ");
+            return;
+        }
+        ColorCodeStyle style = get_style ( "colorcode.number");
+        output.append ( style.get_prefix());
+        output.append ( ""+(line_number++)+space);
+        output.append ( style.get_suffix());
+    }
+
+    /**
+     * Get the style of the token class <code>key</code>, creating it on first
+     * use from the configuration properties.  <code>key</code> is extended
+     * to reference the appropriate properties; for example, "colorcode.keyword" is 
      * extended to "colorcode.keyword.font.bold" to find the boolean value 
      * determining if a keyword should be rendered in bold text
      * 
      * @param key -- base identity of the token's class
-     * @param value -- the token's value
-     * @return
+     * @return the token class's style
      */
-    private String
-    render_token ( String key, String value)
+    private ColorCodeStyle
+    get_style ( String key)
+    {
+        ColorCodeStyle style = (ColorCodeStyle)styles.get ( key);
+        if ( style == null)
+        {
+            if ( shared_styles == null || restyled.contains ( key))
+            {
+                style = create_style ( key);
+            }
+            else
+            {
+                synchronized ( shared_styles)
+                {
+                    style = (ColorCodeStyle)shared_styles.get ( key);
+                    if ( style == null)
+                    {
+                        style = create_style ( key);
+                        shared_styles.put ( key, style);
+                    }
+                }
+            }
+            styles.put ( key, style);
+        }
+        return style;
+    }
+
+    private ColorCodeStyle
+    create_style ( String key)
     {
-        StringBuffer result = new StringBuffer ( "<font color=\"" + syntax.getProperty ( key + ".font.color") + "\">");
+        StringBuffer prefix = new StringBuffer ( "<font color=\"" + syntax.getProperty ( key + ".font.color") + "\">");
+        StringBuffer suffix = new StringBuffer();
         String bold = syntax.getProperty (  key + ".font.bold");
         boolean bold_on = false;
         if ( bold != null && bold.length() > 0)
@@ -560,46 +882,36 @@ public class ColorCodeHTML
         }
         if ( bold_on == true)
         {
-            result.append ( syntax.getProperty ( bold_font_on));
+            prefix.append ( syntax.getProperty ( bold_font_on));
+        }
+        if ( italic_on == true)
+        {
+            prefix.append ( syntax.getProperty ( italic_font_on));
         }
         if ( italic_on == true)
         {
-            result.append ( syntax.getProperty ( italic_font_on));
+            suffix.append ( syntax.getProperty ( italic_font_off));
+        }
+        if ( bold_on == true)
+        {
+            suffix.append ( syntax.getProperty ( bold_font_off));
         }
+        suffix.append ( syntax.getProperty ( font_color_end));
         
         String foldcase = syntax.getProperty (  key + ".foldcase");
-        String out_value = value;
+        int fold = ColorCodeStyle.FOLD_NONE;
         if ( foldcase != null && foldcase.length() > 0)
         {
             if ( foldcase.equalsIgnoreCase  ( "upper"))
             {
-               out_value = value.toUpperCase(); 
+               fold = ColorCodeStyle.FOLD_UPPER; 
             }
             else if ( foldcase.equalsIgnoreCase  ( "lower"))
             {
-               out_value = value.toLowerCase(); 
+               fold = ColorCodeStyle.FOLD_LOWER; 
             }
         }
-        if ( out_value.indexOf ( "<") >= 0)
-        {
-            out_value = out_value.replaceAll ( "<", "&lt;");
-        }
-        if ( out_value.indexOf ( ">") >= 0)
-        {
-            out_value = out_value.replaceAll ( ">", "&gt;");
-        }
-        result.append ( out_value);
-        
-        if ( italic_on == true)
-        {
-            result.append ( syntax.getProperty ( italic_font_off));
-        }
-        if ( bold_on == true)
-        {
-            result.append ( syntax.getProperty ( bold_font_off));
-        }
-        
-        return result.toString() + syntax.getProperty ( font_color_end);
+        return new ColorCodeStyle ( prefix.toString(), suffix.toString(), fold);
     }
     
     // HTML markup to precede the fomatted text
@@ -622,93 +934,122 @@ public class ColorCodeHTML
         "</div>\n" +
         "<!-- ColorCodeHTML: END of automatically generated HTML code -->\n";
     
+    // resolved header/footer per syntax name, for renders whose parameters do not affect them
+    private static final HashMap shared_header_footer = new HashMap();
+    private static final int max_shared_header_footer = 64;
+    private static long shared_header_footer_bytes = 0; // estimated, guarded by shared_header_footer
+    private boolean header_footer_shared;
+
     /**
-     * Get the HTML text to be inserted before the formatted code, 
-     * replacing the substitution values with ones from the current
-     * configuration:
-     * <ul>
-     * <li>SYNTAX - the name of the syntax used for formatting</li>
-     * <li>AREA_CLASS - the class-name to use in CSS processing</li>
-     * <li>AREA_BGCOLOR - the background color of the fragment</li>
-     * </ul>
-     * @return HTML prefix string
+     * @return the estimated heap held by the shared header/footer markup
      */
-    private String
-    get_start()
+    static long
+    get_shared_header_footer_footprint()
+    {
+        synchronized ( shared_header_footer)
+        {
+            return shared_header_footer_bytes;
+        }
+    }
+
+    /**
+     * Drop the shared header/footer markup
+     *
+     * @return the estimated heap released
+     */
+    static long
+    clear_shared_header_footer()
     {
-        return header_footer_substitution ( syntax.getProperty ( start));
+        synchronized ( shared_header_footer)
+        {
+            long result = shared_header_footer_bytes;
+            shared_header_footer.clear();
+            shared_header_footer_bytes = 0;
+            return result;
+        }
     }
-    
+
     /**
-     * Get the HTML text to follow the formatted code, 
-     * replacing the substitution values with ones from the current
-     * configuration
+     * Get the HTML text to be inserted before and after the formatted code,
+     * with the substitution values replaced by ones from the current
+     * configuration.  When no immediate parameter affects them, the
+     * resolved markup is shared between all renders of the same syntax
      * 
-     * @return HTML prefix string
+     * @return the HTML prefix and postfix markup
      */
-    private String
-    get_finish()
+    private ColorCodeMarkup[]
+    get_header_footer()
     {
-        return header_footer_substitution ( syntax.getProperty  ( finish));
+        if ( header_footer_shared == false)
+        {
+            return resolve_header_footer();
+        }
+        synchronized ( shared_header_footer)
+        {
+            ColorCodeMarkup[] result = (ColorCodeMarkup[])shared_header_footer.get ( syntax_name);
+            if ( result == null)
+            {
+                result = resolve_header_footer();
+                if ( shared_header_footer.size() >= max_shared_header_footer)
+                {
+                    shared_header_footer.clear();
+                    shared_header_footer_bytes = 0;
+                }
+                shared_header_footer.put ( syntax_name, result);
+                // the text as chars, its UTF-8 copy, and the objects
+                shared_header_footer_bytes += 3 * ( result[0].get_text().length() + result[1].get_text().length()) + 160;
+            }
+            return result;
+        }
     }
-    
+
     /**
-     * Perform the text substitution of values in the prefix/postfix
+     * Perform the substitution of values in the prefix/postfix
      * markup blocks:
      * <ul>
      * <li>set SYNTAX from "syntax" property</li>
      * <li>set AREA_CLASS from "colorcode.area.class" property (or if not set, from "syntax")</li>
-     * <li>set AREA_BGCOLOR from "colorcode.area.class" property</li>
+     * <li>set AREA_BGCOLOR from "colorcode.area.bgcolor" property</li>
+     * <li>set AREA_BORDER from "colorcode.area.border" property</li>
      * </ul>
-
-     * @param text
-     * @return
+     * 
+     * @return the HTML prefix and postfix markup
+     */
+    private ColorCodeMarkup[]
+    resolve_header_footer()
+    {
+        String[] values = new String[ColorCodeTemplate.PLACEHOLDER_COUNT];
+        String aclass = syntax.getProperty ( area_class);
+        if ( aclass == null || aclass.length() == 0)
+        {
+            aclass = syntax_name.toLowerCase();
+        }
+        values[ColorCodeTemplate.AREA_CLASS] = aclass;
+        values[ColorCodeTemplate.AREA_BGCOLOR] = syntax.getProperty ( area_bgcolor);
+        values[ColorCodeTemplate.AREA_BORDER] = syntax.getProperty ( area_border);
+        values[ColorCodeTemplate.SYNTAX] = syntax_name;
+        
+        return new ColorCodeMarkup[] {
+            new ColorCodeMarkup ( header_footer_substitution ( syntax.getProperty ( start), values)),
+            new ColorCodeMarkup ( header_footer_substitution ( syntax.getProperty ( finish), values))
+        };
+    }
+    
+    /**
+     * Render one markup block through its compiled template
+     * 
+     * @param text the markup block
+     * @param values the substitution values
+     * @return the resolved markup, or "" if there is no block
      */
     private String
-    header_footer_substitution ( String text)
+    header_footer_substitution ( String text, String[] values)
     {
         if ( text == null || text.length() == 0)
         {
             return "";
         }
-        String result = text;
-        if ( result.indexOf ( "AREA_CLASS") > -1)
-        {
-            String aclass = syntax.getProperty ( area_class);
-            if ( aclass == null || aclass.length() == 0)
-            {
-                aclass = syntax_name.toLowerCase();
-            }
-            if ( aclass != null && aclass.length() > 0)
-            {
-                result = result.replaceAll ( "AREA_CLASS", aclass);
-            }
-        }
-        if ( result.indexOf ( "AREA_BGCOLOR") > -1)
-        {
-            String bgcolor = syntax.getProperty ( area_bgcolor);
-            if ( bgcolor != null && bgcolor.length() > 0)
-            {
-                result = result.replaceAll ( "AREA_BGCOLOR", bgcolor);
-            }
-        }
-        if ( result.indexOf ( "AREA_BORDER") > -1)
-        {
-            String border = syntax.getProperty ( area_border);
-            if ( border != null && border.length() > 0)
-            {
-                result = result.replaceAll ( "AREA_BORDER", border);
-            }
-        }
-        if ( result.indexOf ( "SYNTAX") > -1)
-        {
-            String bgcolor = syntax.getProperty ( area_bgcolor);
-            if ( syntax_name != null && syntax_name.length() > 0)
-            {
-                result = result.replaceAll ( "SYNTAX", syntax_name);
-            }
-        }
-        return result;
+        return ColorCodeTemplate.compile ( text).render ( values);
     }
     
     /*
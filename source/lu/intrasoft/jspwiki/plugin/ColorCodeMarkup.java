@@ -0,0 +1,56 @@
+package lu.intrasoft.jspwiki.plugin;
+
+import java.nio.charset.Charset;
+
+/**
+ *  ColorCodeMarkup.java
+ *
+ *  ColorCodeMarkup holds a fixed piece of HTML markup (a token prefix or
+ *  suffix, a newline, an indent) together with its UTF-8 encoding, so
+ *  that byte-oriented output does not have to re-encode the same markup
+ *  for every token.  The encoding is computed on first use.
+ */
+
+public final class ColorCodeMarkup
+{
+    static final Charset UTF8 = Charset.forName ( "UTF-8");
+
+    private final String text;
+    private byte[] utf8;
+
+    public ColorCodeMarkup ( String text)
+    {
+        this.text = text;
+    }
+
+    /**
+     * @return the markup as a String
+     */
+    public String
+    get_text()
+    {
+        return text;
+    }
+
+    /**
+     * @return the markup encoded as UTF-8; callers must not modify the array
+     */
+    public byte[]
+    get_utf8()
+    {
+        byte[] result = utf8;
+        if ( result == null)
+        {
+            // benign race: concurrent callers compute identical arrays
+            result = text.getBytes ( UTF8);
+            utf8 = result;
+        }
+        return result;
+    }
+
+    public String
+    toString()
+    {
+        return text;
+    }
+}
@@ -0,0 +1,193 @@
+package lu.intrasoft.jspwiki.plugin;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *  ColorCodeOffHeapCache.java
+ *
+ *  ColorCodeOffHeapCache keeps rendered HTML fragments outside the Java
+ *  heap, UTF-8 encoded in direct ByteBuffer slabs, so that a large cache
+ *  adds nothing to the old generation but its index of keys.
+ *
+ *  Fragments are appended to the current slab; when it is full, writing
+ *  moves on to the next slab, cycling round, and every entry still held in
+ *  the slab about to be reused is evicted with it.  Entries are therefore
+ *  evicted oldest slab first, a whole slab at a time, which needs no free
+ *  lists and leaves no fragmentation.  A fragment larger than a slab is not
+ *  kept.  Slabs are allocated on first use.
+ */
+
+public class ColorCodeOffHeapCache
+{
+    private final int slab_size;
+    private final ByteBuffer[] slabs;
+    private final ArrayList[] slab_keys; // keys written to each slab, in order
+    private final Map index = new HashMap(); // key -> Entry
+    private int current = 0; // slab being written
+    private long bytes = 0; // bytes of live entries
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long rejected = 0;
+    private long key_chars = 0; // of the keys in the index
+
+    private static final class Entry
+    {
+        final int slab;
+        final int offset;
+        final int length;
+        int hits = 0;
+
+        Entry ( int slab, int offset, int length)
+        {
+            this.slab = slab;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * @param max_bytes the total size of the slabs
+     * @param slab_size the size of each slab, and so of the largest fragment kept
+     */
+    public ColorCodeOffHeapCache ( long max_bytes, int slab_size)
+    {
+        int count = (int)Math.max ( 1, max_bytes / slab_size);
+        this.slab_size = slab_size;
+        this.slabs = new ByteBuffer[count];
+        this.slab_keys = new ArrayList[count];
+    }
+
+    /**
+     * Look up a fragment
+     *
+     * @param key the cache key
+     * @return the fragment, and the number of times it has now been
+     *         read, or null if not present
+     */
+    public synchronized Object[]
+    get ( String key)
+    {
+        Entry entry = (Entry)index.get ( key);
+        if ( entry == null)
+        {
+            misses++;
+            return null;
+        }
+        hits++;
+        entry.hits++;
+        ByteBuffer view = slabs[entry.slab].duplicate();
+        view.limit ( entry.offset + entry.length);
+        view.position ( entry.offset);
+        String fragment = ColorCodeMarkup.UTF8.decode ( view).toString();
+        return new Object[] { fragment, Integer.valueOf ( entry.hits) };
+    }
+
+    /**
+     * Store a fragment, evicting the oldest slab if the current one is full
+     */
+    public synchronized void
+    put ( String key, String fragment)
+    {
+        byte[] encoded = fragment.getBytes ( ColorCodeMarkup.UTF8);
+        if ( encoded.length > slab_size)
+        {
+            rejected++;
+            return;
+        }
+        remove ( key);
+        ByteBuffer slab = slabs[current];
+        if ( slab == null || slab.remaining() < encoded.length)
+        {
+            current = slab == null ? current : ( current + 1) % slabs.length;
+            slab = recycle ( current);
+        }
+        int offset = slab.position();
+        slab.put ( encoded);
+        index.put ( key, new Entry ( current, offset, encoded.length));
+        key_chars += key.length();
+        slab_keys[current].add ( key);
+        bytes += encoded.length;
+    }
+
+    /**
+     * Drop a fragment; its space is reclaimed when its slab is reused
+     */
+    public synchronized void
+    remove ( String key)
+    {
+        Entry entry = (Entry)index.remove ( key);
+        if ( entry != null)
+        {
+            bytes -= entry.length;
+            key_chars -= key.length();
+        }
+    }
+
+    /**
+     * @return the estimated heap held by the index of the off-heap entries
+     */
+    public synchronized long
+    get_index_footprint()
+    {
+        return 2 * key_chars + 96L * index.size();
+    }
+
+    /**
+     * @return the counters: slabs allocated, capacity, entries, bytes,
+     *         hits, misses, evictions, rejected (larger than a slab)
+     */
+    public synchronized Map
+    get_statistics()
+    {
+        int allocated = 0;
+        for ( int i = 0; i < slabs.length; i++)
+        {
+            allocated += slabs[i] == null ? 0 : 1;
+        }
+        Map result = new LinkedHashMap();
+        result.put ( "slabs", Long.valueOf ( allocated));
+        result.put ( "capacity", Long.valueOf ( (long)slabs.length * slab_size));
+        result.put ( "entries", Long.valueOf ( index.size()));
+        result.put ( "bytes", Long.valueOf ( bytes));
+        result.put ( "hits", Long.valueOf ( hits));
+        result.put ( "misses", Long.valueOf ( misses));
+        result.put ( "evictions", Long.valueOf ( evictions));
+        result.put ( "rejected", Long.valueOf ( rejected));
+        return result;
+    }
+
+    /**
+     * Empty slab <code>number</code> for writing, evicting the entries
+     * it still holds, allocating it if it is new
+     */
+    private ByteBuffer
+    recycle ( int number)
+    {
+        if ( slabs[number] == null)
+        {
+            slabs[number] = ByteBuffer.allocateDirect ( slab_size);
+            slab_keys[number] = new ArrayList();
+            return slabs[number];
+        }
+        ArrayList keys = slab_keys[number];
+        for ( int i = 0; i < keys.size(); i++)
+        {
+            Entry entry = (Entry)index.get ( keys.get ( i));
+            if ( entry != null && entry.slab == number)
+            {
+                index.remove ( keys.get ( i));
+                bytes -= entry.length;
+                key_chars -= ((String)keys.get ( i)).length();
+                evictions++;
+            }
+        }
+        keys.clear();
+        slabs[number].clear();
+        return slabs[number];
+    }
+}
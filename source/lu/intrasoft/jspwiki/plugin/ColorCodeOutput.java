@@ -0,0 +1,29 @@
+package lu.intrasoft.jspwiki.plugin;
+
+/**
+ *  ColorCodeOutput.java
+ *
+ *  ColorCodeOutput is the destination ColorCodeHTML renders into.  Fixed
+ *  markup is passed as ColorCodeMarkup, so that implementations may use a
+ *  pre-encoded form of it; everything else (escaped token text, header
+ *  and footer) is passed as a String.
+ */
+
+public interface ColorCodeOutput
+{
+    /**
+     * Append a piece of fixed markup
+     *
+     * @param markup the markup to append
+     */
+    public void
+    append ( ColorCodeMarkup markup);
+
+    /**
+     * Append text that is already valid HTML (escaped as required)
+     *
+     * @param text the text to append
+     */
+    public void
+    append ( String text);
+}
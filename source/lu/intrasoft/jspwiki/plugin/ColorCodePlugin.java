@@ -1,6 +1,9 @@
 package lu.intrasoft.jspwiki.plugin;
 
+import java.io.IOException;
+import java.io.StringReader;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import com.ecyrd.jspwiki.WikiContext;
 import com.ecyrd.jspwiki.plugin.PluginException;
@@ -29,6 +32,17 @@ import com.ecyrd.jspwiki.plugin.WikiPlugin;
 *  This example will attempt to load a resource named 'sql' from the webapps
 *  classpath, for example, a file WEB-INF/classes/sql.properties, and use the
 *  properties in it to format the text
+*
+*  Instead of a body, a <code>src</code> parameter may name an attachment
+*  or a file to be formatted; see ColorCodeSource.
+*
+*  With <code>mode='text'</code>, or when the rendering code sets the
+*  context variable <code>colorcode.mode</code> to 'text' (for example for
+*  the search indexer), only the plain code text is emitted; see ColorCodeText.
+*  With <code>output='compact'</code> the text and its token classes are
+*  sent separately, for a script to style in the browser; see ColorCodeCompact.
+*
+*  The plugin's counters can be logged periodically; see ColorCodeStatistics.
 */
 
 public class ColorCodePlugin
@@ -43,13 +57,80 @@ public class ColorCodePlugin
     execute ( WikiContext wiki_context, Map params)
 		throws PluginException
 	{
-        String body = (String)params.get( "_body" );
+        ColorCodeStatistics.tick();
+        if ( ColorCodeText.is_requested ( wiki_context, params))
+        {
+            return ColorCodeText.extract ( wiki_context, params);
+        }
+        if ( ColorCodeCompact.is_requested ( params))
+        {
+            return ColorCodeCompact.add_page_resources ( wiki_context, render ( wiki_context, params));
+        }
+        return render ( wiki_context, params);
+	}
+
+    /**
+     * Render the body, or the source named by <code>src</code>
+     */
+    private String
+    render ( WikiContext wiki_context, Map params)
+        throws PluginException
+    {
+        if ( params.get ( "src") != null)
+        {
+            return ColorCodeSource.format ( wiki_context, params);
+        }
+        final String body = (String)params.get( "_body" );
         if( body == null )
         {
             return "";
         }
         
-        ColorCodeHTML formatter = new ColorCodeHTML();
-        return formatter.format ( body, params);
+        // rendered blocks are cached by content, and concurrent renders of
+        // the same block, as after an edit, share one result
+        final Map render_params = params;
+        final String key = ColorCodeCache.key ( "body:" + ColorCodeCache.digest ( body), params);
+        final boolean cached = ColorCodeProfile.is_requested ( params) == false  // the report or trace is of this render
+                               && ColorCodeTrace.is_requested ( params) == false;
+        if ( cached)
+        {
+            String result = ColorCodeCache.FRAGMENTS.get ( key);
+            if ( result != null)
+            {
+                return result;
+            }
+        }
+        return ColorCodeFlight.RENDERS.run ( key, body, new Callable()
+        {
+            public Object call()
+                throws IOException
+            {
+                if ( ColorCodeAdmission.RENDERS.enter ( body.length()) == false)
+                {
+                    return ColorCodeAdmission.RENDERS.plain ( new StringReader ( body));
+                }
+                try
+                {
+                    String fragment;
+                    if ( ColorCodeShadow.is_enabled())
+                    {
+                        fragment = ColorCodeShadow.format ( body, render_params);
+                    }
+                    else
+                    {
+                        fragment = new ColorCodeHTML().format ( body, render_params);
+                    }
+                    if ( cached)
+                    {
+                        ColorCodeCache.FRAGMENTS.put ( key, fragment);
+                    }
+                    return fragment;
+                }
+                finally
+                {
+                    ColorCodeAdmission.RENDERS.leave ( body.length());
+                }
+            }
+        });
 	}
 }
\ No newline at end of file
@@ -0,0 +1,231 @@
+package lu.intrasoft.jspwiki.plugin;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ *  ColorCodeProfile.java
+ *
+ *  ColorCodeProfile measures where the time of one render goes, to find
+ *  which code block makes a page slow: the time spent loading the syntax
+ *  (<code>initialise</code>), tokenizing, rendering the tokens, and
+ *  building the header and footer; the number of tokens of each class;
+ *  the special patterns tried; and the bytes allocated by the rendering
+ *  thread, where the JVM can tell.
+ *
+ *  Like ColorCodeTrace, a profile only exists for a render that asked for
+ *  it, so the formatter's only cost otherwise is a null check.  Parameter
+ *  <code>profile</code>:
+ *  <ul>
+ *  <li>'true' - append the report to the fragment, as an HTML comment</li>
+ *  <li>'log' - log the report instead</li>
+ *  </ul>
+ */
+
+public class ColorCodeProfile
+{
+    public static final int INITIALISE = 0;
+    public static final int TOKENIZE = 1;
+    public static final int RENDER = 2;
+    public static final int HEADER_FOOTER = 3;
+
+    private static final String[] phase_names = { "initialise", "tokenize", "render", "header_footer" };
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private static final Method allocated_bytes = find_allocated_bytes();
+
+    private final boolean log;
+    private final long started;
+    private final long allocated_at_start;
+    private final long[] phase_nanos = new long[phase_names.length];
+    private final Map tokens = new TreeMap(); // token class -> int[1]
+    private int special_attempts = 0;
+    private String syntax_name;
+
+    private ColorCodeProfile ( boolean log)
+    {
+        this.log = log;
+        this.allocated_at_start = get_allocated_bytes();
+        this.started = System.nanoTime();
+    }
+
+    /**
+     * @param params the plugin parameters
+     * @return true if the parameters ask for a profile
+     */
+    public static boolean
+    is_requested ( Map params)
+    {
+        Object value = params.get ( profile);
+        return value != null && ( "true".equalsIgnoreCase ( value.toString()) || "log".equalsIgnoreCase ( value.toString()));
+    }
+
+    /**
+     * Start profiling the current render, if the parameters ask for it
+     *
+     * @param params the plugin parameters
+     * @return a profile, or null when none is wanted
+     */
+    public static ColorCodeProfile
+    create ( Map params)
+    {
+        if ( is_requested ( params) == false)
+        {
+            return null;
+        }
+        return new ColorCodeProfile ( "log".equalsIgnoreCase ( params.get ( profile).toString()));
+    }
+
+    /**
+     * Add the time since <code>since</code> to a phase
+     *
+     * @param phase INITIALISE, TOKENIZE, RENDER or HEADER_FOOTER
+     * @param since a System.nanoTime() value
+     */
+    public void
+    add ( int phase, long since)
+    {
+        phase_nanos[phase] += System.nanoTime() - since;
+    }
+
+    /**
+     * Count a token rendered as <code>token_class</code>
+     */
+    public void
+    count ( String token_class)
+    {
+        int[] counter = (int[])tokens.get ( token_class);
+        if ( counter == null)
+        {
+            counter = new int[1];
+            tokens.put ( token_class, counter);
+        }
+        counter[0]++;
+    }
+
+    /**
+     * Count a special pattern tried against a token
+     */
+    public void
+    count_special_attempt()
+    {
+        special_attempts++;
+    }
+
+    public void
+    set_syntax_name ( String syntax_name)
+    {
+        this.syntax_name = syntax_name;
+    }
+
+    /**
+     * End the profile: append the report to the output as an HTML comment,
+     * or log it
+     *
+     * @param output the rendered fragment
+     */
+    public void
+    finish ( ColorCodeOutput output)
+    {
+        String report = report();
+        if ( log)
+        {
+            Logger.getLogger ( ColorCodeHTML.class).info ( report);
+        }
+        else
+        {
+            while ( report.indexOf ( "--") >= 0)
+            {
+                report = report.replace ( "--", "- -"); // the syntax name comes from the page
+            }
+            output.append ( "\n<!-- " + report + " -->");
+        }
+    }
+
+    /**
+     * @return the report, on one line
+     */
+    public String
+    report()
+    {
+        long total = System.nanoTime() - started;
+        StringBuffer result = new StringBuffer ( "ColorCode profile: syntax=");
+        result.append ( syntax_name);
+        for ( int i = 0; i < phase_names.length; i++)
+        {
+            result.append ( ' ').append ( phase_names[i]).append ( '=').append ( micros ( phase_nanos[i])).append ( "us");
+        }
+        result.append ( " total=").append ( micros ( total)).append ( "us");
+        long allocated = get_allocated_bytes();
+        if ( allocated >= 0 && allocated_at_start >= 0)
+        {
+            result.append ( " allocated=").append ( allocated - allocated_at_start).append ( 'B');
+        }
+        result.append ( " special.attempts=").append ( special_attempts);
+        result.append ( " tokens:");
+        Iterator iter = tokens.entrySet().iterator();
+        while ( iter.hasNext())
+        {
+            Map.Entry entry = (Map.Entry)iter.next();
+            result.append ( ' ').append ( entry.getKey()).append ( '=').append ( ((int[])entry.getValue())[0]);
+        }
+        return result.toString();
+    }
+
+    private static String
+    micros ( long nanos)
+    {
+        return String.valueOf ( ( nanos + 500) / 1000);
+    }
+
+    /**
+     * @return the bytes allocated so far by the current thread, or -1 if
+     *         the JVM does not say
+     */
+    private static long
+    get_allocated_bytes()
+    {
+        if ( allocated_bytes == null)
+        {
+            return -1;
+        }
+        try
+        {
+            Object[] args = { Long.valueOf ( Thread.currentThread().getId()) };
+            return ((Long)allocated_bytes.invoke ( threads, args)).longValue();
+        }
+        catch ( Exception e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Allocation counting is a HotSpot extension of ThreadMXBean
+     */
+    private static Method
+    find_allocated_bytes()
+    {
+        try
+        {
+            Class extension = Class.forName ( "com.sun.management.ThreadMXBean");
+            if ( extension.isInstance ( threads) == false)
+            {
+                return null;
+            }
+            return extension.getMethod ( "getThreadAllocatedBytes", new Class[] { Long.TYPE });
+        }
+        catch ( Exception e)
+        {
+            return null;
+        }
+    }
+
+    private static final String profile = "profile";
+}
@@ -0,0 +1,225 @@
+package lu.intrasoft.jspwiki.plugin;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ *  ColorCodeShadow.java
+ *
+ *  ColorCodeShadow runs the current engine (ColorCodeHTML) and the
+ *  reference engine (ColorCodeLegacyHTML) side by side on a sample of
+ *  renders, compares their output after normalisation, and keeps count of
+ *  mismatches and of the time each engine took.  Only one of the two
+ *  results is served.  Renders served from the fragment cache do not run
+ *  either engine, so the sample is of cache misses, not of page views.  The reference engine does not split words at
+ *  Unicode category changes (<code>tokenizer.unicode</code>), so a body
+ *  with non-ASCII text is compared with a second render of the current
+ *  engine that does not split them either.
+ *
+ *  Configured by system properties:
+ *  <ul>
+ *  <li><code>colorcode.shadow.sample</code> - compare 1 in N renders;
+ *      0 (the default) turns shadow mode off</li>
+ *  <li><code>colorcode.shadow.serve</code> - 'current' (the default) or
+ *      'reference', the engine whose output is served</li>
+ *  </ul>
+ */
+
+public class ColorCodeShadow
+{
+    private static final int sample_rate = Integer.getInteger ( "colorcode.shadow.sample", 0).intValue();
+    private static final boolean serve_reference = "reference".equalsIgnoreCase ( System.getProperty ( "colorcode.shadow.serve"));
+    private static final int max_logged = 20; // after which only every 100th mismatch is logged
+
+    private static final AtomicLong renders = new AtomicLong();
+    private static final AtomicLong compared = new AtomicLong();
+    private static final AtomicLong mismatches = new AtomicLong();
+    private static final AtomicLong reference_failures = new AtomicLong();
+    private static final AtomicLong current_nanos = new AtomicLong();
+    private static final AtomicLong reference_nanos = new AtomicLong();
+
+    private static final Logger logger = Logger.getLogger ( ColorCodeShadow.class);
+    private static final String tokenizer_unicode = "tokenizer.unicode";
+
+    /**
+     * @return true if shadow mode is configured
+     */
+    public static boolean
+    is_enabled()
+    {
+        return sample_rate > 0;
+    }
+
+    /**
+     * Format the body with the served engine, and on sampled renders also
+     * with the other one, recording the comparison
+     *
+     * @param body the plain text to be formatted
+     * @param params immediate syntax and formatting values
+     * @return the served engine's HTML fragment
+     */
+    public static String
+    format ( String body, Map params)
+    {
+        if ( ColorCodeCompact.is_requested ( params) || ColorCodeProfile.is_requested ( params))
+        {
+            return new ColorCodeHTML().format ( body, params); // output the reference engine has no equivalent of
+        }
+        if ( renders.getAndIncrement() % sample_rate != 0)
+        {
+            return serve_reference ? new ColorCodeLegacyHTML().format ( body, params)
+                                   : new ColorCodeHTML().format ( body, params);
+        }
+
+        long started = System.nanoTime();
+        String current = new ColorCodeHTML().format ( body, params);
+        long current_time = System.nanoTime() - started;
+
+        String reference = null;
+        started = System.nanoTime();
+        try
+        {
+            reference = new ColorCodeLegacyHTML().format ( body, params);
+        }
+        catch ( RuntimeException rex)
+        {
+            reference_failures.incrementAndGet();
+            logger.warn ( "ColorCode shadow: reference engine failed: " + rex);
+        }
+        long reference_time = System.nanoTime() - started;
+
+        if ( reference != null)
+        {
+            String comparable = current;
+            if ( is_split_by_unicode ( body, params))
+            {
+                Map reference_params = new HashMap ( params);
+                reference_params.put ( tokenizer_unicode, "false");
+                comparable = new ColorCodeHTML().format ( body, reference_params);
+            }
+            compared.incrementAndGet();
+            current_nanos.addAndGet ( current_time);
+            reference_nanos.addAndGet ( reference_time);
+            int difference = first_difference ( normalize ( comparable), normalize ( reference));
+            if ( difference >= 0)
+            {
+                long count = mismatches.incrementAndGet();
+                if ( count <= max_logged || count % 100 == 0)
+                {
+                    logger.warn ( "ColorCode shadow: mismatch #" + count + ", syntax=" + params.get ( "syntax")
+                                  + ", at normalised offset " + difference);
+                }
+            }
+        }
+        return serve_reference && reference != null ? reference : current;
+    }
+
+    /**
+     * @return true if the current engine may split words of the body that
+     *         the reference engine does not: it has non-ASCII characters,
+     *         and the parameters do not turn the splitting off
+     */
+    private static boolean
+    is_split_by_unicode ( String body, Map params)
+    {
+        if ( "false".equalsIgnoreCase ( (String)params.get ( tokenizer_unicode)))
+        {
+            return false;
+        }
+        for ( int i = 0; i < body.length(); i++)
+        {
+            if ( body.charAt ( i) >= 0x80)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Normalise an HTML fragment for comparison: line ends are unified,
+     * trailing white space is dropped from every line, white space
+     * between tags is removed, and '&amp;amp;' is read as '&amp;' (which
+     * the reference engine does not escape)
+     *
+     * @param html the fragment
+     * @return the normalised fragment
+     */
+    public static String
+    normalize ( String html)
+    {
+        StringBuffer result = new StringBuffer ( html.length());
+        int length = html.length();
+        int i = 0;
+        while ( i < length)
+        {
+            char c = html.charAt ( i);
+            if ( Character.isWhitespace ( c))
+            {
+                int run_end = i;
+                while ( run_end < length && Character.isWhitespace ( html.charAt ( run_end)))
+                {
+                    run_end++;
+                }
+                boolean between_tags = ( result.length() == 0 || result.charAt ( result.length() - 1) == '>')
+                                       && ( run_end == length || html.charAt ( run_end) == '<');
+                boolean has_newline = html.substring ( i, run_end).indexOf ( '\n') >= 0
+                                      || html.substring ( i, run_end).indexOf ( '\r') >= 0;
+                if ( between_tags == false)
+                {
+                    result.append ( has_newline ? "\n" : html.substring ( i, run_end));
+                }
+                i = run_end;
+                continue;
+            }
+            if ( c == '&' && html.startsWith ( "&amp;", i))
+            {
+                result.append ( c);
+                i += 5;
+                continue;
+            }
+            result.append ( c);
+            i++;
+        }
+        return result.toString();
+    }
+
+    /**
+     * @return the offset of the first difference, or -1 if the texts are equal
+     */
+    public static int
+    first_difference ( String a, String b)
+    {
+        int length = Math.min ( a.length(), b.length());
+        for ( int i = 0; i < length; i++)
+        {
+            if ( a.charAt ( i) != b.charAt ( i))
+            {
+                return i;
+            }
+        }
+        return a.length() == b.length() ? -1 : length;
+    }
+
+    /**
+     * @return the shadow mode counters: renders, compared, mismatches,
+     *         reference failures, and the total nanoseconds spent in each
+     *         engine on compared renders
+     */
+    public static Map
+    get_statistics()
+    {
+        Map result = new LinkedHashMap();
+        result.put ( "renders", Long.valueOf ( renders.get()));
+        result.put ( "compared", Long.valueOf ( compared.get()));
+        result.put ( "mismatches", Long.valueOf ( mismatches.get()));
+        result.put ( "reference.failures", Long.valueOf ( reference_failures.get()));
+        result.put ( "current.nanos", Long.valueOf ( current_nanos.get()));
+        result.put ( "reference.nanos", Long.valueOf ( reference_nanos.get()));
+        return result;
+    }
+}
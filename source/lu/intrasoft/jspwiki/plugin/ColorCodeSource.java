@@ -0,0 +1,407 @@
+package lu.intrasoft.jspwiki.plugin;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import com.ecyrd.jspwiki.WikiContext;
+import com.ecyrd.jspwiki.attachment.Attachment;
+import com.ecyrd.jspwiki.attachment.AttachmentManager;
+import com.ecyrd.jspwiki.plugin.PluginException;
+import com.ecyrd.jspwiki.providers.ProviderException;
+
+/**
+ *  ColorCodeSource.java
+ *
+ *  ColorCodeSource is the text named by the plugin's <code>src</code>
+ *  parameter, instead of the body: an attachment of the current page or,
+ *  failing that, a file under the directory named by the
+ *  <code>colorcode.src.root</code> property (in jspwiki.properties, or a
+ *  system property).  Files are read through a memory map and tokenized
+ *  as they are decoded, never held as a whole String; rendered fragments
+ *  are cached by source, size and modification time.  When a render is
+ *  refused by admission control, the fragment of the previous version of
+ *  the source is served if it is still cached.
+ *
+ *  Example:
+ *  <pre>
+ *  [{ColorCodePlugin syntax='java' src='Example.java'}]
+ *  </pre>
+ *  The parameter <code>src.encoding</code> names the character set of
+ *  the text (default UTF-8).
+ *
+ *  A plugin returns its output as a String, so sources over
+ *  <code>colorcode.src.max</code> bytes (a system property, default 8M;
+ *  0 for no limit) are refused by the plugin and by text extraction.  A
+ *  servlet or JSP can stream a source of any size, in bounded memory,
+ *  through <code>format ( context, params, out)</code>.
+ */
+
+public class ColorCodeSource
+{
+    private static final long max_size = Long.getLong ( "colorcode.src.max", 8 * 1024 * 1024).longValue();
+    private static final int max_latest = 1024;
+    private static final Map latest = new LinkedHashMap ( 64, 0.75f, true) // unversioned key -> last cached key
+    {
+        protected boolean removeEldestEntry ( Map.Entry eldest)
+        {
+            return size() > max_latest;
+        }
+    };
+
+    private static final int latest_bytes = 512; // estimated heap per entry of latest
+
+    /**
+     * The memory held by the keys of the last fragment of each source,
+     * for ColorCodeGovernor
+     */
+    public static final ColorCodeFootprint FOOTPRINT = new ColorCodeFootprint()
+    {
+        public long
+        get_footprint()
+        {
+            synchronized ( latest)
+            {
+                return (long)latest.size() * latest_bytes;
+            }
+        }
+
+        public long
+        shrink ( long bytes)
+        {
+            synchronized ( latest)
+            {
+                long released = (long)latest.size() * latest_bytes;
+                latest.clear();
+                return released;
+            }
+        }
+    };
+
+    private final String name; // the source, whatever its version
+    private final String identity;
+    private final long size;
+    private final long modified;
+    private final File file;
+    private final AttachmentManager attachments;
+    private final Attachment attachment;
+
+    private ColorCodeSource ( String name, String identity, long size, long modified,
+                              File file, AttachmentManager attachments, Attachment attachment)
+    {
+        this.name = name;
+        this.identity = identity;
+        this.size = size;
+        this.modified = modified;
+        this.file = file;
+        this.attachments = attachments;
+        this.attachment = attachment;
+    }
+
+    /**
+     * Render the source named by the <code>src</code> parameter, from the
+     * fragment cache if it has not changed
+     *
+     * @param wiki_context the context of the page being rendered
+     * @param params the plugin parameters
+     * @return the HTML fragment
+     * @throws PluginException if the source cannot be found or read, or
+     *         is over <code>colorcode.src.max</code>
+     */
+    public static String
+    format ( WikiContext wiki_context, Map params)
+        throws PluginException
+    {
+        final ColorCodeSource source = resolve ( wiki_context, (String)params.get ( src));
+        source.check_size();
+        if ( ColorCodeProfile.is_requested ( params) || ColorCodeTrace.is_requested ( params))
+        {
+            return source.render ( params); // the report or trace is of this render, not a cached one
+        }
+        final String key = ColorCodeCache.key ( source.identity + '|' + source.size + '|' + source.modified, params);
+        String result = ColorCodeCache.FRAGMENTS.get ( key);
+        if ( result != null)
+        {
+            return result;
+        }
+        final Map render_params = params;
+        final String latest_key = ColorCodeCache.key ( source.name, params);
+        return ColorCodeFlight.RENDERS.run ( key, key, new Callable()
+        {
+            public Object call()
+                throws PluginException
+            {
+                if ( ColorCodeAdmission.RENDERS.enter ( source.size) == false)
+                {
+                    return source.fallback ( latest_key, render_params);
+                }
+                try
+                {
+                    String fragment = source.render ( render_params);
+                    ColorCodeCache.FRAGMENTS.put ( key, fragment);
+                    synchronized ( latest)
+                    {
+                        latest.put ( latest_key, key);
+                    }
+                    return fragment;
+                }
+                finally
+                {
+                    ColorCodeAdmission.RENDERS.leave ( source.size);
+                }
+            }
+        });
+    }
+
+    /**
+     * Render the source named by the <code>src</code> parameter directly to
+     * a stream as UTF-8; heap use is bounded whatever the size of the source
+     *
+     * @param wiki_context the context of the page being rendered
+     * @param params the plugin parameters
+     * @param out the stream to write the HTML fragment to
+     * @throws PluginException if the source cannot be found, or its
+     *         encoding is not supported
+     * @throws IOException if the source cannot be read or the stream written
+     */
+    public static void
+    format ( WikiContext wiki_context, Map params, OutputStream out)
+        throws PluginException, IOException
+    {
+        ColorCodeSource source = resolve ( wiki_context, (String)params.get ( src));
+        Reader reader = source.open ( params);
+        try
+        {
+            new ColorCodeHTML().format ( reader, params, out);
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * Open the source named by the <code>src</code> parameter for reading,
+     * for callers that want the text rather than the HTML fragment
+     *
+     * @param wiki_context the context of the page being rendered
+     * @param params the plugin parameters
+     * @return a reader over the text; the caller closes it
+     * @throws PluginException if the source cannot be found or opened, or
+     *         is over <code>colorcode.src.max</code>
+     */
+    public static Reader
+    open ( WikiContext wiki_context, Map params)
+        throws PluginException
+    {
+        ColorCodeSource source = resolve ( wiki_context, (String)params.get ( src));
+        source.check_size();
+        try
+        {
+            return source.open ( params);
+        }
+        catch ( IOException ioe)
+        {
+            throw new PluginException ( "Could not read " + source.identity + ": " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Find the source: an attachment of the current page, or else a file
+     * under the configured root directory
+     */
+    private static ColorCodeSource
+    resolve ( WikiContext wiki_context, String name)
+        throws PluginException
+    {
+        if ( name == null || name.length() == 0)
+        {
+            throw new PluginException ( "No source named");
+        }
+        if ( wiki_context != null && wiki_context.getEngine() != null)
+        {
+            try
+            {
+                AttachmentManager attachments = wiki_context.getEngine().getAttachmentManager();
+                Attachment attachment = attachments.getAttachmentInfo ( wiki_context, name);
+                if ( attachment != null)
+                {
+                    long modified = attachment.getLastModified() == null ? 0 : attachment.getLastModified().getTime();
+                    String attachment_name = "attachment:" + attachment.getName();
+                    return new ColorCodeSource ( attachment_name, attachment_name + '/' + attachment.getVersion(),
+                                                 attachment.getSize(), modified, null, attachments, attachment);
+                }
+            }
+            catch ( ProviderException pe)
+            {
+                throw new PluginException ( "Could not get attachment " + name + ": " + pe.getMessage());
+            }
+        }
+
+        String root = null;
+        if ( wiki_context != null && wiki_context.getEngine() != null)
+        {
+            root = wiki_context.getEngine().getWikiProperties().getProperty ( src_root);
+        }
+        if ( root == null)
+        {
+            root = System.getProperty ( src_root);
+        }
+        if ( root == null || root.length() == 0)
+        {
+            throw new PluginException ( "No attachment " + name + ", and " + src_root + " is not set");
+        }
+        try
+        {
+            File root_dir = new File ( root).getCanonicalFile();
+            File file = new File ( root_dir, name).getCanonicalFile();
+            if ( file.getPath().startsWith ( root_dir.getPath() + File.separator) == false)
+            {
+                throw new PluginException ( "Source " + name + " is outside " + src_root);
+            }
+            if ( file.isFile() == false)
+            {
+                throw new PluginException ( "No attachment or file " + name);
+            }
+            return new ColorCodeSource ( "file:" + file.getPath(), "file:" + file.getPath(), file.length(), file.lastModified(),
+                                         file, null, null);
+        }
+        catch ( IOException ioe)
+        {
+            throw new PluginException ( "Could not resolve " + name + ": " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Refuse a source too large to be rendered to a String
+     */
+    private void
+    check_size()
+        throws PluginException
+    {
+        if ( max_size > 0 && size > max_size)
+        {
+            throw new PluginException ( "Source " + identity + " is " + size + " bytes, over the limit of "
+                                        + max_size + " set by colorcode.src.max");
+        }
+    }
+
+    /**
+     * Render the whole source to an HTML fragment
+     */
+    private String
+    render ( Map params)
+        throws PluginException
+    {
+        try
+        {
+            Reader reader = open ( params);
+            try
+            {
+                return new ColorCodeHTML().format ( reader, params);
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        catch ( IOException ioe)
+        {
+            throw new PluginException ( "Could not read " + identity + ": " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Serve a render refused by admission control: the last fragment
+     * cached for this source, if there is one, else the plain text
+     */
+    private String
+    fallback ( String latest_key, Map params)
+        throws PluginException
+    {
+        String previous;
+        synchronized ( latest)
+        {
+            previous = (String)latest.get ( latest_key);
+        }
+        String fragment = previous == null ? null : ColorCodeCache.FRAGMENTS.get ( previous);
+        if ( fragment != null)
+        {
+            return ColorCodeAdmission.RENDERS.stale ( fragment);
+        }
+        try
+        {
+            Reader reader = open ( params);
+            try
+            {
+                return ColorCodeAdmission.RENDERS.plain ( reader);
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        catch ( IOException ioe)
+        {
+            throw new PluginException ( "Could not read " + identity + ": " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Open the text for reading: files through a memory map, attachments
+     * through the attachment provider's stream
+     */
+    private Reader
+    open ( Map params)
+        throws IOException, PluginException
+    {
+        String encoding = (String)params.get ( src_encoding);
+        Charset charset = ColorCodeMarkup.UTF8;
+        if ( encoding != null && encoding.length() > 0)
+        {
+            try
+            {
+                charset = Charset.forName ( encoding);
+            }
+            catch ( IllegalCharsetNameException icne)
+            {
+                throw new PluginException ( "Invalid " + src_encoding + " '" + encoding + "' for " + identity);
+            }
+            catch ( UnsupportedCharsetException uce)
+            {
+                throw new PluginException ( "Unsupported " + src_encoding + " '" + encoding + "' for " + identity);
+            }
+        }
+        if ( file != null)
+        {
+            return new ColorCodeFileReader ( file, charset);
+        }
+        try
+        {
+            InputStream stream = attachments.getAttachmentStream ( attachment);
+            if ( stream == null)
+            {
+                throw new IOException ( "attachment has no content");
+            }
+            return new BufferedReader ( new InputStreamReader ( stream, charset));
+        }
+        catch ( ProviderException pe)
+        {
+            throw new IOException ( pe.getMessage());
+        }
+    }
+
+    private static final String src = "src";
+    private static final String src_encoding = "src.encoding";
+    private static final String src_root = "colorcode.src.root";
+}
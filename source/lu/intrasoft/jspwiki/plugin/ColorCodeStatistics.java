@@ -0,0 +1,58 @@
+package lu.intrasoft.jspwiki.plugin;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ *  ColorCodeStatistics.java
+ *
+ *  ColorCodeStatistics reports the plugin's counters to the log at INFO,
+ *  every <code>colorcode.stats.interval</code> seconds (default 0, off):
+ *  one line each for the fragment cache, render coalescing, the memory
+ *  held by each cache and, when it is on, admission control.  The
+ *  report is written by the first render after the interval has passed,
+ *  so no timer thread is started that could outlive the web application.
+ */
+
+public class ColorCodeStatistics
+{
+    private static final long interval = Integer.getInteger ( "colorcode.stats.interval", 0).longValue() * 1000;
+
+    private static final Logger logger = Logger.getLogger ( ColorCodeStatistics.class);
+    private static final AtomicLong next_report = new AtomicLong ( System.currentTimeMillis() + interval);
+
+    /**
+     * Log the counters if the interval has passed; called on every render
+     */
+    public static void
+    tick()
+    {
+        if ( interval <= 0)
+        {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long next = next_report.get();
+        if ( now < next || next_report.compareAndSet ( next, now + interval) == false)
+        {
+            return; // not due, or another render is reporting
+        }
+        report();
+    }
+
+    /**
+     * Log the counters now
+     */
+    public static void
+    report()
+    {
+        logger.info ( "ColorCode fragments: " + ColorCodeCache.FRAGMENTS.get_statistics());
+        logger.info ( "ColorCode flight: " + ColorCodeFlight.RENDERS.get_statistics());
+        logger.info ( "ColorCode memory: " + ColorCodeGovernor.get_statistics());
+        if ( ColorCodeAdmission.RENDERS.is_enabled())
+        {
+            logger.info ( "ColorCode admission: " + ColorCodeAdmission.RENDERS.get_statistics());
+        }
+    }
+}
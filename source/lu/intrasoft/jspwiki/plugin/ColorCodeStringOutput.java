@@ -0,0 +1,36 @@
+package lu.intrasoft.jspwiki.plugin;
+
+/**
+ *  ColorCodeStringOutput.java
+ *
+ *  ColorCodeStringOutput collects the rendered HTML as a String.
+ */
+
+public class ColorCodeStringOutput
+    implements ColorCodeOutput
+{
+    private final StringBuffer buffer;
+
+    public ColorCodeStringOutput ( int capacity)
+    {
+        buffer = new StringBuffer ( capacity);
+    }
+
+    public void
+    append ( ColorCodeMarkup markup)
+    {
+        buffer.append ( markup.get_text());
+    }
+
+    public void
+    append ( String text)
+    {
+        buffer.append ( text);
+    }
+
+    public String
+    toString()
+    {
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,60 @@
+package lu.intrasoft.jspwiki.plugin;
+
+/**
+ *  ColorCodeStyle.java
+ *
+ *  ColorCodeStyle is the rendering of one token class (for example
+ *  "colorcode.keyword") resolved from the syntax properties: the markup
+ *  emitted before and after the token text, and the case folding applied
+ *  to the text itself.
+ */
+
+public final class ColorCodeStyle
+{
+    public static final int FOLD_NONE = 0;
+    public static final int FOLD_UPPER = 1;
+    public static final int FOLD_LOWER = 2;
+
+    private final ColorCodeMarkup prefix;
+    private final ColorCodeMarkup suffix;
+    private final int foldcase;
+
+    public ColorCodeStyle ( String prefix, String suffix, int foldcase)
+    {
+        this.prefix = new ColorCodeMarkup ( prefix);
+        this.suffix = new ColorCodeMarkup ( suffix);
+        this.foldcase = foldcase;
+    }
+
+    public ColorCodeMarkup
+    get_prefix()
+    {
+        return prefix;
+    }
+
+    public ColorCodeMarkup
+    get_suffix()
+    {
+        return suffix;
+    }
+
+    /**
+     * Apply the style's case folding to a token value
+     *
+     * @param value the token text
+     * @return the folded text
+     */
+    public String
+    fold ( String value)
+    {
+        switch ( foldcase)
+        {
+            case FOLD_UPPER:
+                return value.toUpperCase();
+            case FOLD_LOWER:
+                return value.toLowerCase();
+            default:
+                return value;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package lu.intrasoft.jspwiki.plugin;
+
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.MissingResourceException;
+import java.util.Properties;
+import java.util.ResourceBundle;
+import java.util.Set;
+
+/**
+ *  ColorCodeSyntax.java
+ *
+ *  ColorCodeSyntax is a syntax resource compiled once and shared by all
+ *  the renders that use it.  Its properties are a layer over those of the
+ *  profile it extends, named by <code>colorcode.extends</code>, or else
+ *  over the built-in defaults, so a syntax file need only hold what differs
+ *  from its base:
+ *  <pre>
+ *  colorcode.extends: colorcode-base
+ *  colorcode.keywords: ...
+ *  </pre>
+ *  The bundled syntaxes all extend colorcode-base, which holds the fonts
+ *  and markup they share.
+ *  Each render adds its own layer for the plugin parameters on top (see
+ *  <code>overlay</code>), instead of copying the whole configuration.  A
+ *  compiled syntax also keeps the tables derived from it, the token styles,
+ *  indent markup and keyword sets, which renders share, except for the
+ *  entries their parameters change.
+ */
+
+public class ColorCodeSyntax
+{
+    private static final String extends_key = "colorcode.extends";
+    private static final int max_compiled = 64;
+    private static final Map compiled = new HashMap(); // name -> ColorCodeSyntax
+    private static final int table_bytes = 8 * 1024; // allowance for the styles, indents and keywords built later
+    private static final String[] style_suffixes = { ".font.color", ".font.bold", ".font.italic", ".foldcase" };
+    private static ColorCodeSyntax defaults;
+    private static long compiled_bytes = 0; // estimated, guarded by compiled
+
+    /**
+     * The memory held by the compiled syntaxes and their tables, for
+     * ColorCodeGovernor; the built-in defaults are not counted or dropped
+     */
+    public static final ColorCodeFootprint FOOTPRINT = new ColorCodeFootprint()
+    {
+        public long
+        get_footprint()
+        {
+            synchronized ( compiled)
+            {
+                return compiled_bytes;
+            }
+        }
+
+        public long
+        shrink ( long bytes)
+        {
+            synchronized ( compiled)
+            {
+                long released = compiled_bytes;
+                compiled.clear();
+                compiled_bytes = 0;
+                return released;
+            }
+        }
+    };
+
+    private final String name;
+    private final ColorCodeSyntax base; // null for the built-in defaults
+    private final Properties properties;
+    private final Map styles = new HashMap(); // token class -> ColorCodeStyle; synchronized on itself
+    private final ColorCodeMarkup[] indents = new ColorCodeMarkup[100];
+    private Set keywords; // as listed, or lower-cased if keywords ignore case
+    private boolean keywords_folded;
+
+    private ColorCodeSyntax ( String name, ColorCodeSyntax base, Properties properties)
+    {
+        this.name = name;
+        this.base = base;
+        this.properties = properties;
+    }
+
+    /**
+     * Get the compiled syntax for a resource name, loading it and the
+     * profiles it extends on first use
+     *
+     * @param name the resource name, for example "java"
+     * @return the compiled syntax
+     * @throws MissingResourceException if there is no such resource
+     */
+    public static ColorCodeSyntax
+    get ( String name)
+    {
+        synchronized ( compiled)
+        {
+            return get ( name, new HashSet());
+        }
+    }
+
+    /**
+     * @return the syntax with only the built-in defaults, used when none is named
+     */
+    public static ColorCodeSyntax
+    get_defaults()
+    {
+        synchronized ( compiled)
+        {
+            if ( defaults == null)
+            {
+                defaults = new ColorCodeSyntax ( null, null, ColorCodeHTML.default_properties());
+            }
+            return defaults;
+        }
+    }
+
+    private static ColorCodeSyntax
+    get ( String name, Set loading)
+    {
+        ColorCodeSyntax result = (ColorCodeSyntax)compiled.get ( name);
+        if ( result != null)
+        {
+            return result;
+        }
+        ResourceBundle bundle = ResourceBundle.getBundle ( name);
+        loading.add ( name);
+        ColorCodeSyntax base = get_defaults();
+        if ( bundle.containsKey ( extends_key))
+        {
+            String base_name = bundle.getString ( extends_key).trim();
+            if ( loading.contains ( base_name))
+            {
+                throw new MissingResourceException ( "Syntax " + name + " extends itself through " + base_name,
+                                                     name, extends_key);
+            }
+            base = get ( base_name, loading);
+        }
+        Properties layer = new Properties ( base.properties);
+        long bytes = table_bytes;
+        Enumeration keys = bundle.getKeys();
+        while ( keys.hasMoreElements())
+        {
+            String key = (String)keys.nextElement();
+            String value = bundle.getString ( key);
+            layer.put ( key, value);
+            bytes += 2 * ( key.length() + value.length()) + 96;
+        }
+        result = new ColorCodeSyntax ( name, base, layer);
+        if ( compiled.size() >= max_compiled)
+        {
+            compiled.clear();
+            compiled_bytes = 0;
+        }
+        compiled.put ( name, result);
+        compiled_bytes += bytes;
+        return result;
+    }
+
+    public String
+    get_name()
+    {
+        return name;
+    }
+
+    /**
+     * @return the compiled properties; shared, and never to be modified
+     */
+    public Properties
+    get_properties()
+    {
+        return properties;
+    }
+
+    /**
+     * Get the properties set by the syntax resource and the profiles it
+     * extends, merged into one table, without the built-in defaults; for
+     * code that reads a syntax as a flat resource
+     *
+     * @return a new table, which the caller may modify
+     */
+    public Properties
+    get_resource_properties()
+    {
+        Properties result = new Properties();
+        if ( base != null)
+        {
+            result.putAll ( base.get_resource_properties());
+            result.putAll ( properties); // only the entries of this layer, not its defaults
+        }
+        return result;
+    }
+
+    /**
+     * Start the configuration of one render: an empty layer over the
+     * compiled properties, to hold the values set by plugin parameters
+     *
+     * @return the render's properties
+     */
+    public Properties
+    overlay()
+    {
+        return new Properties ( properties);
+    }
+
+    /**
+     * Which of the shared styles can a render with the given parameter
+     * layer not use?  Those of the token classes whose font or case it
+     * sets, or all of them if it sets the font markup itself
+     * (<code>colorcode.font.*</code>)
+     *
+     * @param layer the render's layer, from <code>overlay()</code>
+     * @return the token classes the layer restyles, e.g. "colorcode.keyword",
+     *         or null if it restyles all of them
+     */
+    public static Set
+    get_restyled ( Properties layer)
+    {
+        Set result = new HashSet();
+        Enumeration keys = layer.keys(); // only the layer's own keys
+        while ( keys.hasMoreElements())
+        {
+            String key = (String)keys.nextElement();
+            if ( key.startsWith ( "colorcode.font."))
+            {
+                return null;
+            }
+            for ( int i = 0; i < style_suffixes.length; i++)
+            {
+                if ( key.startsWith ( "colorcode.") && key.endsWith ( style_suffixes[i]))
+                {
+                    result.add ( key.substring ( 0, key.length() - style_suffixes[i].length()));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Can a render with the given parameter layer use the shared indent
+     * markup?  Only if it sets none of the background color, the space
+     * markup and the end of font markup
+     *
+     * @param layer the render's layer, from <code>overlay()</code>
+     * @return true if the shared indents apply
+     */
+    public static boolean
+    shares_indents ( Properties layer)
+    {
+        return layer.containsKey ( "colorcode.area.bgcolor") == false // only the layer's own keys
+            && layer.containsKey ( "colorcode.space") == false
+            && layer.containsKey ( "colorcode.font.color.end") == false;
+    }
+
+    /**
+     * @return the shared styles, token class -> ColorCodeStyle; synchronize
+     *         on the map to use it
+     */
+    public Map
+    get_styles()
+    {
+        return styles;
+    }
+
+    /**
+     * @return the shared indent markup, indexed by width
+     */
+    public ColorCodeMarkup[]
+    get_indents()
+    {
+        return indents;
+    }
+
+    /**
+     * Get the keyword set of the compiled syntax; shared, and never to be
+     * modified
+     *
+     * @param ignore_case true if the keywords are to be lower-cased
+     * @return the keywords
+     */
+    public synchronized Set
+    get_keywords ( boolean ignore_case)
+    {
+        if ( keywords == null || keywords_folded != ignore_case)
+        {
+            Set result = new HashSet();
+            String list = properties.getProperty ( "colorcode.keywords");
+            if ( list != null && list.length() > 0)
+            {
+                String[] words = list.split ( ",");
+                for ( int i = 0; i < words.length; i++)
+                {
+                    result.add ( ignore_case ? words[i].toLowerCase() : words[i]);
+                }
+            }
+            keywords = result;
+            keywords_folded = ignore_case;
+        }
+        return keywords;
+    }
+}
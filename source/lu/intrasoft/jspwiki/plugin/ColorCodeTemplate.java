@@ -0,0 +1,183 @@
+package lu.intrasoft.jspwiki.plugin;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *  ColorCodeTemplate.java
+ *
+ *  ColorCodeTemplate is a header or footer markup block (the
+ *  <code>colorcode.start</code> and <code>colorcode.finish</code> properties)
+ *  compiled into a list of literal segments separated by placeholders:
+ *  <ul>
+ *  <li>SYNTAX - the name of the syntax used for formatting</li>
+ *  <li>AREA_CLASS - the class-name to use in CSS processing</li>
+ *  <li>AREA_BGCOLOR - the background color of the fragment</li>
+ *  <li>AREA_BORDER - the border width of the fragment</li>
+ *  </ul>
+ *  Rendering appends the literals and the placeholder values in a single
+ *  pass; values are inserted verbatim, so characters such as '$' need no
+ *  quoting.  Compiled templates are shared, keyed by their text.
+ */
+
+public final class ColorCodeTemplate
+{
+    public static final int SYNTAX = 0;
+    public static final int AREA_CLASS = 1;
+    public static final int AREA_BGCOLOR = 2;
+    public static final int AREA_BORDER = 3;
+    public static final int PLACEHOLDER_COUNT = 4;
+
+    private static final String[] placeholders = { "SYNTAX", "AREA_CLASS", "AREA_BGCOLOR", "AREA_BORDER" };
+
+    private static final int max_cached = 64;
+    private static final Map compiled = new HashMap();
+    private static long compiled_bytes = 0; // estimated, guarded by compiled
+
+    /**
+     * The memory held by compiled templates and by the header and footer
+     * markup resolved from them, for ColorCodeGovernor
+     */
+    public static final ColorCodeFootprint FOOTPRINT = new ColorCodeFootprint()
+    {
+        public long
+        get_footprint()
+        {
+            long result;
+            synchronized ( compiled)
+            {
+                result = compiled_bytes;
+            }
+            // not under the lock: rendering takes the header/footer lock, then this one
+            return result + ColorCodeHTML.get_shared_header_footer_footprint();
+        }
+
+        public long
+        shrink ( long bytes)
+        {
+            long released;
+            synchronized ( compiled)
+            {
+                released = compiled_bytes;
+                compiled.clear();
+                compiled_bytes = 0;
+            }
+            return released + ColorCodeHTML.clear_shared_header_footer();
+        }
+    };
+
+    private final String[] literals; // literals[i] precedes slots[i]; the last one trails
+    private final int[] slots;
+    private final int literal_length;
+
+    private ColorCodeTemplate ( String[] literals, int[] slots)
+    {
+        this.literals = literals;
+        this.slots = slots;
+        int length = 0;
+        for ( int i = 0; i < literals.length; i++)
+        {
+            length += literals[i].length();
+        }
+        this.literal_length = length;
+    }
+
+    /**
+     * Get the compiled form of a template text, compiling it on first use
+     *
+     * @param text the template markup
+     * @return the compiled template
+     */
+    public static ColorCodeTemplate
+    compile ( String text)
+    {
+        synchronized ( compiled)
+        {
+            ColorCodeTemplate result = (ColorCodeTemplate)compiled.get ( text);
+            if ( result == null)
+            {
+                result = parse ( text);
+                if ( compiled.size() >= max_cached)
+                {
+                    compiled.clear(); // templates from page parameters may vary without bound
+                    compiled_bytes = 0;
+                }
+                compiled.put ( text, result);
+                // the key text, the literals, and the objects
+                compiled_bytes += 2 * ( text.length() + result.literal_length) + 32 * result.literals.length + 128;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Render the template with the supplied placeholder values; a placeholder
+     * whose value is null or empty is left in the output unchanged
+     *
+     * @param values the placeholder values, indexed by SYNTAX, AREA_CLASS, etc.
+     * @return the resolved markup
+     */
+    public String
+    render ( String[] values)
+    {
+        if ( slots.length == 0)
+        {
+            return literals[0];
+        }
+        StringBuffer result = new StringBuffer ( literal_length + 16 * slots.length);
+        for ( int i = 0; i < slots.length; i++)
+        {
+            result.append ( literals[i]);
+            String value = values[slots[i]];
+            if ( value == null || value.length() == 0)
+            {
+                value = placeholders[slots[i]];
+            }
+            result.append ( value);
+        }
+        result.append ( literals[slots.length]);
+        return result.toString();
+    }
+
+    /**
+     * Split the template text into literals and placeholders
+     */
+    private static ColorCodeTemplate
+    parse ( String text)
+    {
+        ArrayList literal_list = new ArrayList();
+        ArrayList slot_list = new ArrayList();
+        int from = 0;
+        while ( true)
+        {
+            int found = -1;
+            int slot = -1;
+            for ( int p = 0; p < placeholders.length; p++)
+            {
+                int at = text.indexOf ( placeholders[p], from);
+                if ( at >= 0 && ( found < 0 || at < found))
+                {
+                    found = at;
+                    slot = p;
+                }
+            }
+            if ( found < 0)
+            {
+                break;
+            }
+            literal_list.add ( text.substring ( from, found));
+            slot_list.add ( Integer.valueOf ( slot));
+            from = found + placeholders[slot].length();
+        }
+        literal_list.add ( text.substring ( from));
+
+        String[] literals = (String[])literal_list.toArray ( new String[literal_list.size()]);
+        int[] slots = new int[slot_list.size()];
+        for ( int i = 0; i < slots.length; i++)
+        {
+            slots[i] = ((Integer)slot_list.get ( i)).intValue();
+        }
+        return new ColorCodeTemplate ( literals, slots);
+    }
+}
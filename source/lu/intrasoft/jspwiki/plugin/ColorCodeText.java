@@ -0,0 +1,170 @@
+package lu.intrasoft.jspwiki.plugin;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.HashSet;
+import java.util.Map;
+
+import com.ecyrd.jspwiki.WikiContext;
+import com.ecyrd.jspwiki.plugin.PluginException;
+
+/**
+ *  ColorCodeText.java
+ *
+ *  ColorCodeText is the cheap rendering used when the output is not
+ *  going to be displayed, for example when a search indexer renders a
+ *  page: no tokenizing, styles, header, footer or white space markup,
+ *  just the code text with white space normalised (and the HTML special
+ *  characters escaped, so the indexer's markup stripping leaves the code
+ *  intact).  Optionally only the distinct identifiers are emitted.
+ *
+ *  Text mode is chosen by the parameter <code>mode='text'</code>, or by
+ *  the WikiContext variable <code>colorcode.mode</code> set to 'text' by
+ *  the code doing the rendering.  The parameter <code>text.unique='true'</code>
+ *  selects the distinct identifiers.
+ */
+
+public class ColorCodeText
+{
+    public static final String TEXT = "text";
+
+    /**
+     * Is text mode wanted for this render?
+     *
+     * @param wiki_context the context of the page being rendered, may be null
+     * @param params the plugin parameters
+     * @return true if the plain text is to be emitted
+     */
+    public static boolean
+    is_requested ( WikiContext wiki_context, Map params)
+    {
+        Object mode = params.get ( mode_param);
+        if ( mode == null && wiki_context != null)
+        {
+            mode = wiki_context.getVariable ( mode_variable);
+        }
+        return mode != null && TEXT.equalsIgnoreCase ( mode.toString());
+    }
+
+    /**
+     * Extract the text of the body, or of the source named by <code>src</code>
+     *
+     * @param wiki_context the context of the page being rendered
+     * @param params the plugin parameters
+     * @return the normalised, escaped text
+     * @throws PluginException if the source cannot be found or read
+     */
+    public static String
+    extract ( WikiContext wiki_context, Map params)
+        throws PluginException
+    {
+        boolean unique = Boolean.valueOf ( (String)params.get ( text_unique)).booleanValue();
+        if ( params.get ( "src") == null)
+        {
+            String body = (String)params.get ( "_body");
+            if ( body == null)
+            {
+                return "";
+            }
+            return extract ( new StringReader ( body), unique);
+        }
+        Reader reader = ColorCodeSource.open ( wiki_context, params);
+        try
+        {
+            return extract ( reader, unique);
+        }
+        finally
+        {
+            try
+            {
+                reader.close();
+            }
+            catch ( IOException ioe)
+            {
+                // nothing more to read
+            }
+        }
+    }
+
+    /**
+     * Copy the text, collapsing each run of blanks to one space and
+     * dropping blank lines, or collect its distinct identifiers
+     */
+    private static String
+    extract ( Reader reader, boolean unique)
+        throws PluginException
+    {
+        StringBuffer result = new StringBuffer();
+        StringBuffer word = new StringBuffer();
+        HashSet seen = unique ? new HashSet() : null;
+        boolean pending_space = false;
+        boolean line_empty = true;
+        try
+        {
+            int c;
+            do
+            {
+                c = reader.read();
+                if ( unique)
+                {
+                    if ( c >= 0 && ( Character.isLetterOrDigit ( (char)c) || c == '_'))
+                    {
+                        word.append ( (char)c);
+                        continue;
+                    }
+                    if ( word.length() > 0)
+                    {
+                        String identifier = word.toString();
+                        word.setLength ( 0);
+                        if ( Character.isDigit ( identifier.charAt ( 0)) == false && seen.add ( identifier))
+                        {
+                            if ( result.length() > 0)
+                            {
+                                result.append ( ' ');
+                            }
+                            for ( int i = 0; i < identifier.length(); i++)
+                            {
+                                ColorCodeEscape.append ( identifier.charAt ( i), result);
+                            }
+                        }
+                    }
+                    continue;
+                }
+                if ( c == '\n' || c < 0)
+                {
+                    if ( line_empty == false)
+                    {
+                        result.append ( '\n');
+                    }
+                    line_empty = true;
+                    pending_space = false;
+                }
+                else if ( c <= ' ')
+                {
+                    pending_space = line_empty == false;
+                }
+                else
+                {
+                    if ( pending_space)
+                    {
+                        result.append ( ' ');
+                        pending_space = false;
+                    }
+                    ColorCodeEscape.append ( (char)c, result);
+                    line_empty = false;
+                }
+            }
+            while ( c >= 0);
+        }
+        catch ( IOException ioe)
+        {
+            throw new PluginException ( "Could not read source: " + ioe.getMessage());
+        }
+        return result.toString();
+    }
+
+    private static final String mode_param = "mode";
+    private static final String mode_variable = "colorcode.mode";
+    private static final String text_unique = "text.unique";
+}
@@ -0,0 +1,176 @@
+package lu.intrasoft.jspwiki.plugin;
+
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ *  ColorCodeTrace.java
+ *
+ *  ColorCodeTrace is the diagnostic logging facility used by ColorCodeHTML.
+ *  A trace object only exists for a render that asked for it (parameter
+ *  <code>log='true'</code>) and was selected by the sampling rate, so the
+ *  formatter guards every message with a single null check, and callers
+ *  test the level (<code>is_enabled</code>) before building any message text.
+ *  A render that asks for a trace is never served from, nor stored in, the
+ *  fragment cache, so that every sampled render is traced.
+ *
+ *  Parameters recognised:
+ *  <ul>
+ *  <li><code>log</code> - 'true' to enable tracing for this block</li>
+ *  <li><code>log.level</code> - 'error', 'info' (default) or 'token', the
+ *      latter adding one structured event per token</li>
+ *  <li><code>log.sample</code> - trace only 1 in N renders (default 1)</li>
+ *  </ul>
+ */
+
+public class ColorCodeTrace
+{
+    public static final int ERROR = 1;
+    public static final int INFO = 2;
+    public static final int TOKEN = 3;
+
+    private static final Object sample_lock = new Object();
+    private static long sample_counter = 0;
+
+    private final Logger logger;
+    private final int level;
+
+    private ColorCodeTrace ( Logger logger, int level)
+    {
+        this.logger = logger;
+        this.level = level;
+    }
+
+    /**
+     * @param params the plugin parameters
+     * @return true if the parameters ask for a trace, sampled or not
+     */
+    public static boolean
+    is_requested ( Map params)
+    {
+        String do_logging = (String)params.get ( log);
+        return do_logging != null && Boolean.valueOf(do_logging).booleanValue();
+    }
+
+    /**
+     * Build a trace for the current render, if the parameters ask for one
+     * and this render is selected by the sampling rate
+     *
+     * @param params the plugin parameters
+     * @return a trace object, or null when nothing is to be logged
+     */
+    public static ColorCodeTrace
+    create ( Map params)
+    {
+        if ( is_requested ( params) == false)
+        {
+            return null;
+        }
+        if ( is_sampled ( parse_int ( (String)params.get ( log_sample), 1)) == false)
+        {
+            return null;
+        }
+        return new ColorCodeTrace ( Logger.getLogger ( ColorCodeHTML.class),
+                                    parse_level ( (String)params.get ( log_level)));
+    }
+
+    /**
+     * @param wanted one of ERROR, INFO or TOKEN
+     * @return true if messages at the <code>wanted</code> level are logged
+     */
+    public boolean
+    is_enabled ( int wanted)
+    {
+        return wanted <= level;
+    }
+
+    public void
+    info ( String message)
+    {
+        if ( level >= INFO)
+        {
+            logger.info ( message);
+        }
+    }
+
+    public void
+    error ( String message)
+    {
+        logger.error ( message);
+    }
+
+    /**
+     * Log a structured per-token event; only called when the TOKEN level
+     * is enabled
+     *
+     * @param line input line the token was read from
+     * @param token_class the class the token was rendered as, e.g. "colorcode.keyword"
+     * @param value the token text
+     */
+    public void
+    token ( int line, String token_class, String value)
+    {
+        StringBuffer event = new StringBuffer ( 48 + value.length());
+        event.append ( "token line=").append ( line)
+             .append ( " class=").append ( token_class)
+             .append ( " value=[").append ( value).append ( "]");
+        logger.info ( event.toString());
+    }
+
+    /**
+     * Decide if the current render is to be traced, selecting
+     * one in every <code>rate</code> renders
+     */
+    private static boolean
+    is_sampled ( int rate)
+    {
+        if ( rate <= 1)
+        {
+            return true;
+        }
+        synchronized ( sample_lock)
+        {
+            return ( sample_counter++ % rate) == 0;
+        }
+    }
+
+    private static int
+    parse_level ( String value)
+    {
+        if ( value == null || value.length() == 0)
+        {
+            return INFO;
+        }
+        if ( value.equalsIgnoreCase ( "error"))
+        {
+            return ERROR;
+        }
+        if ( value.equalsIgnoreCase ( "token") || value.equalsIgnoreCase ( "debug"))
+        {
+            return TOKEN;
+        }
+        return INFO;
+    }
+
+    private static int
+    parse_int ( String value, int fallback)
+    {
+        if ( value == null || value.length() == 0)
+        {
+            return fallback;
+        }
+        try
+        {
+            return Integer.parseInt ( value.trim());
+        }
+        catch ( NumberFormatException nfe)
+        {
+            return fallback;
+        }
+    }
+
+    private static final String log = "log";
+    private static final String log_level = "log.level";
+    private static final String log_sample = "log.sample";
+}
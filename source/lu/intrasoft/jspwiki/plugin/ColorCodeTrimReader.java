@@ -0,0 +1,108 @@
+package lu.intrasoft.jspwiki.plugin;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ *  ColorCodeTrimReader.java
+ *
+ *  ColorCodeTrimReader is the streaming equivalent of <code>String.trim()</code>:
+ *  it drops the leading and trailing characters of its input that are less
+ *  than or equal to ' '.  A run of such characters is held back until a
+ *  character follows it, so only the current run is buffered, never the
+ *  whole input.
+ */
+
+public class ColorCodeTrimReader
+    extends Reader
+{
+    private final Reader in;
+    private boolean started = false;
+    private boolean eof = false;
+    private final StringBuffer pending = new StringBuffer(); // white space run not yet known to be trailing
+    private int pending_pos = 0;
+    private int held = -1; // the character that ended the pending run
+
+    public ColorCodeTrimReader ( Reader in)
+    {
+        this.in = in;
+    }
+
+    public int
+    read()
+        throws IOException
+    {
+        if ( pending_pos < pending.length())
+        {
+            return pending.charAt ( pending_pos++);
+        }
+        if ( held >= 0)
+        {
+            int c = held;
+            held = -1;
+            return c;
+        }
+        if ( eof)
+        {
+            return -1;
+        }
+        int c = in.read();
+        if ( c > ' ')
+        {
+            started = true;
+            return c;
+        }
+        // start of a white space run (or end of input): read to its end
+        pending.setLength ( 0);
+        pending_pos = 0;
+        while ( c >= 0 && c <= ' ')
+        {
+            if ( started)
+            {
+                pending.append ( (char)c);
+            }
+            c = in.read();
+        }
+        if ( c < 0)
+        {
+            eof = true;
+            pending.setLength ( 0); // trailing: dropped
+            return -1;
+        }
+        if ( started == false)
+        {
+            started = true; // leading: dropped
+            return c;
+        }
+        held = c;
+        return pending.charAt ( pending_pos++);
+    }
+
+    public int
+    read ( char[] buffer, int offset, int length)
+        throws IOException
+    {
+        if ( length == 0)
+        {
+            return 0;
+        }
+        int count = 0;
+        while ( count < length)
+        {
+            int c = read();
+            if ( c < 0)
+            {
+                break;
+            }
+            buffer[offset + count++] = (char)c;
+        }
+        return count == 0 ? -1 : count;
+    }
+
+    public void
+    close()
+        throws IOException
+    {
+        in.close();
+    }
+}
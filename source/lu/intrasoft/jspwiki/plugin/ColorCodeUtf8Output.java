@@ -0,0 +1,279 @@
+package lu.intrasoft.jspwiki.plugin;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ *  ColorCodeUtf8Output.java
+ *
+ *  ColorCodeUtf8Output renders directly into a UTF-8 encoded ByteBuffer,
+ *  copying the pre-encoded bytes of fixed markup and encoding only the
+ *  token text on the fly.  Buffers are pooled one per thread: obtain an
+ *  instance with <code>acquire()</code> and hand it back with
+ *  <code>release()</code> once its content has been written or copied.
+ *
+ *  An output acquired for a stream writes the buffer out whenever it
+ *  fills, instead of growing it, so rendering a large input needs no
+ *  more than the one buffer; call <code>flush()</code> at the end.
+ */
+
+public class ColorCodeUtf8Output
+    implements ColorCodeOutput
+{
+    private static final int initial_capacity = 8 * 1024;
+    private static final int max_pooled_capacity = 1024 * 1024; // larger buffers are not kept
+
+    private static final ThreadLocal pool = new ThreadLocal();
+    private static final Map pooled = new WeakHashMap(); // Thread -> Integer, the capacity of its pooled buffer
+
+    /**
+     * The memory held by the pooled buffers of live threads, reported by
+     * ColorCodeGovernor; a buffer pooled by another thread cannot be taken
+     * from it, so nothing is released here, and buffers are not pooled
+     * while memory is short
+     */
+    public static final ColorCodeFootprint FOOTPRINT = new ColorCodeFootprint()
+    {
+        public long
+        get_footprint()
+        {
+            long result = 0;
+            synchronized ( pooled)
+            {
+                Iterator iter = pooled.entrySet().iterator();
+                while ( iter.hasNext())
+                {
+                    Map.Entry entry = (Map.Entry)iter.next();
+                    if ( ((Thread)entry.getKey()).isAlive() == false)
+                    {
+                        iter.remove(); // its buffer went with its thread-local values
+                        continue;
+                    }
+                    result += ((Integer)entry.getValue()).intValue();
+                }
+            }
+            return result;
+        }
+
+        public long
+        shrink ( long bytes)
+        {
+            return 0;
+        }
+    };
+
+    private ByteBuffer buffer;
+    private final OutputStream target; // null when collecting the whole output
+    private IOException failure; // first error writing to target
+
+    private ColorCodeUtf8Output ( ByteBuffer buffer, OutputStream target)
+    {
+        this.buffer = buffer;
+        this.target = target;
+    }
+
+    /**
+     * Get an empty output, reusing the current thread's pooled buffer
+     * if there is one
+     *
+     * @return an output ready for rendering
+     */
+    public static ColorCodeUtf8Output
+    acquire()
+    {
+        return acquire ( null);
+    }
+
+    /**
+     * Get an empty output that writes to <code>target</code> as its buffer
+     * fills, reusing the current thread's pooled buffer if there is one
+     *
+     * @param target the stream to write to, or null to collect the output
+     * @return an output ready for rendering
+     */
+    public static ColorCodeUtf8Output
+    acquire ( OutputStream target)
+    {
+        ByteBuffer buffer = (ByteBuffer)pool.get();
+        if ( buffer == null)
+        {
+            buffer = ByteBuffer.allocate ( initial_capacity);
+        }
+        else
+        {
+            pool.set ( null);
+            synchronized ( pooled)
+            {
+                pooled.remove ( Thread.currentThread());
+            }
+            buffer.clear();
+        }
+        return new ColorCodeUtf8Output ( buffer, target);
+    }
+
+    /**
+     * Return the buffer to the current thread's pool; the output must not
+     * be used afterwards
+     */
+    public void
+    release()
+    {
+        if ( buffer != null && buffer.capacity() <= max_pooled_capacity
+             && ColorCodeGovernor.is_under_pressure() == false)
+        {
+            pool.set ( buffer);
+            synchronized ( pooled)
+            {
+                pooled.put ( Thread.currentThread(), Integer.valueOf ( buffer.capacity()));
+            }
+        }
+        buffer = null;
+    }
+
+    public void
+    append ( ColorCodeMarkup markup)
+    {
+        byte[] bytes = markup.get_utf8();
+        ensure ( bytes.length);
+        buffer.put ( bytes);
+    }
+
+    public void
+    append ( String text)
+    {
+        int length = text.length();
+        ensure ( length * 3);
+        for ( int i = 0; i < length; i++)
+        {
+            char c = text.charAt ( i);
+            if ( c < 0x80)
+            {
+                buffer.put ( (byte)c);
+            }
+            else if ( c < 0x800)
+            {
+                buffer.put ( (byte)(0xc0 | (c >> 6)));
+                buffer.put ( (byte)(0x80 | (c & 0x3f)));
+            }
+            else if ( Character.isHighSurrogate ( c) && i + 1 < length
+                      && Character.isLowSurrogate ( text.charAt ( i + 1)))
+            {
+                int code = Character.toCodePoint ( c, text.charAt ( ++i));
+                buffer.put ( (byte)(0xf0 | (code >> 18)));
+                buffer.put ( (byte)(0x80 | ((code >> 12) & 0x3f)));
+                buffer.put ( (byte)(0x80 | ((code >> 6) & 0x3f)));
+                buffer.put ( (byte)(0x80 | (code & 0x3f)));
+            }
+            else if ( Character.isSurrogate ( c))
+            {
+                buffer.put ( (byte)'?'); // unpaired surrogate, as String.getBytes does
+            }
+            else
+            {
+                buffer.put ( (byte)(0xe0 | (c >> 12)));
+                buffer.put ( (byte)(0x80 | ((c >> 6) & 0x3f)));
+                buffer.put ( (byte)(0x80 | (c & 0x3f)));
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes rendered so far
+     */
+    public int
+    size()
+    {
+        return buffer.position();
+    }
+
+    /**
+     * Write the rendered bytes to a stream
+     *
+     * @param out the destination, for example a servlet output stream
+     * @throws IOException if the stream cannot be written
+     */
+    public void
+    write_to ( OutputStream out)
+        throws IOException
+    {
+        out.write ( buffer.array(), buffer.arrayOffset(), buffer.position());
+    }
+
+    /**
+     * Write whatever is buffered to the target stream
+     *
+     * @throws IOException if the stream could not be written, now or
+     *         while rendering
+     */
+    public void
+    flush()
+        throws IOException
+    {
+        if ( target != null && buffer.position() > 0)
+        {
+            if ( failure == null)
+            {
+                try
+                {
+                    write_to ( target);
+                }
+                catch ( IOException ioe)
+                {
+                    failure = ioe;
+                }
+            }
+            buffer.clear();
+        }
+        if ( failure != null)
+        {
+            throw failure;
+        }
+    }
+
+    /**
+     * @return a copy of the rendered bytes, for example to be cached
+     */
+    public byte[]
+    to_byte_array()
+    {
+        byte[] result = new byte[buffer.position()];
+        System.arraycopy ( buffer.array(), buffer.arrayOffset(), result, 0, result.length);
+        return result;
+    }
+
+    /**
+     * Grow the buffer if fewer than <code>needed</code> bytes remain
+     */
+    private void
+    ensure ( int needed)
+    {
+        if ( buffer.remaining() >= needed)
+        {
+            return;
+        }
+        if ( target != null)
+        {
+            try
+            {
+                flush();
+            }
+            catch ( IOException ioe)
+            {
+                // kept in failure, reported by the final flush(); output is discarded
+            }
+            if ( buffer.remaining() >= needed)
+            {
+                return;
+            }
+        }
+        int capacity = Math.max ( buffer.capacity() * 2, buffer.position() + needed);
+        ByteBuffer grown = ByteBuffer.allocate ( capacity);
+        buffer.flip();
+        grown.put ( buffer);
+        buffer = grown;
+    }
+}
@@ -1,7 +1,9 @@
 package lu.intrasoft.jspwiki.plugin;
 
+import java.io.IOException;
 import java.io.Reader;
 import java.io.StreamTokenizer;
+import java.util.ArrayList;
 import java.util.Properties;
 
 /**
@@ -14,11 +16,35 @@ import java.util.Properties;
  *  SyntaxTokenizer is a specialised StreamTokenizer that reads its 
  *  configuration settings from either a provided configuration, or
  *  some reasonable defaults
+ *
+ *  StreamTokenizer classifies characters from a table covering only the
+ *  range 0-255, and treats every character above it as part of a word.
+ *  With <code>tokenizer.unicode</code> set (the default), words holding
+ *  characters outside ASCII are split again: characters in the Unicode
+ *  categories or ranges of <code>tokenizer.unicodeWordChars</code> stay
+ *  in words, and each run of the others becomes a single TT_SYMBOLS
+ *  token.  ASCII text still goes through the table lookup only.
  */
 
 public class SyntaxTokenizer
     extends StreamTokenizer
 {
+    /**
+     * Token type of a run of non-ASCII characters that are not word
+     * characters; the run is in <code>sval</code>
+     */
+    public static final int TT_SYMBOLS = -10;
+    
+    private boolean unicode = false;
+    private boolean[] unicode_word_types = new boolean[32]; // indexed by Character.getType
+    private int[] unicode_word_ranges = new int[0]; // pairs of lo, hi code points
+    
+    private final ArrayList pending_types = new ArrayList(); // pieces of a split word still to return
+    private final ArrayList pending_values = new ArrayList();
+    private int pending_pos = 0;
+    private boolean pushed_back = false;
+    private static final int tt_nothing = -4; // StreamTokenizer's (private) TT_NOTHING, ttype before the first token
+    
     /**
      * Constructor building a tokenizer using 
      * build-in default values
@@ -145,6 +171,191 @@ public class SyntaxTokenizer
                 this.wordChars ( lo, hi);
             }
         }
+        
+        String unicodeMode = configuration.getProperty ( tokenizer_unicode);
+        if ( unicodeMode != null && unicodeMode.length() > 0)
+        {
+            unicode = Boolean.valueOf(unicodeMode).booleanValue ();
+        }
+        String unicodeWordChars = configuration.getProperty ( tokenizer_unicodeWordChars);
+        if ( unicodeWordChars != null && unicodeWordChars.length() > 0)
+        {
+            set_unicode_word_chars ( unicodeWordChars);
+        }
+    }
+    
+    /**
+     * Set the non-ASCII word characters from a comma-separated list of
+     * Unicode general categories, either one letter for a whole class
+     * ("L") or two for a single category ("Lu"), and/or ranges of
+     * character codes ("0x0400-0x04FF")
+     * 
+     * @param definition the list
+     */
+    private void
+    set_unicode_word_chars ( String definition)
+    {
+        unicode_word_types = new boolean[32];
+        ArrayList ranges = new ArrayList();
+        String[] items = definition.split ( ",");
+        for ( int i = 0; i < items.length; i++)
+        {
+            String item = items[i].trim();
+            int dash = item.indexOf ( '-', 1);
+            if ( dash > 0)
+            {
+                ranges.add ( Integer.valueOf ( parse_char_code ( item.substring ( 0, dash).trim())));
+                ranges.add ( Integer.valueOf ( parse_char_code ( item.substring ( dash + 1).trim())));
+                continue;
+            }
+            for ( int t = 0; t < category_names.length; t++)
+            {
+                if ( category_names[t] != null && category_names[t].startsWith ( item) && item.length() > 0)
+                {
+                    unicode_word_types[t] = true;
+                }
+            }
+        }
+        unicode_word_ranges = new int[ranges.size()];
+        for ( int i = 0; i < unicode_word_ranges.length; i++)
+        {
+            unicode_word_ranges[i] = ((Integer)ranges.get ( i)).intValue();
+        }
+    }
+    
+    /**
+     * Is the (non-ASCII) code point a word character?
+     */
+    private boolean
+    is_unicode_word_char ( int code_point)
+    {
+        if ( unicode_word_types[Character.getType ( code_point)])
+        {
+            return true;
+        }
+        for ( int i = 0; i < unicode_word_ranges.length; i += 2)
+        {
+            if ( code_point >= unicode_word_ranges[i] && code_point <= unicode_word_ranges[i+1])
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Get the next token, as <code>StreamTokenizer.nextToken</code>, splitting
+     * words that hold non-word Unicode characters into words and TT_SYMBOLS runs
+     * 
+     * @see java.io.StreamTokenizer#nextToken()
+     */
+    public int
+    nextToken()
+        throws IOException
+    {
+        if ( pushed_back)
+        {
+            pushed_back = false;
+            return ttype;
+        }
+        if ( pending_pos < pending_types.size())
+        {
+            return next_piece();
+        }
+        int token = super.nextToken();
+        if ( token != TT_WORD || unicode == false || split_word ( sval) == false)
+        {
+            return token;
+        }
+        return next_piece();
+    }
+    
+    /**
+     * @see java.io.StreamTokenizer#pushBack()
+     */
+    public void
+    pushBack()
+    {
+        if ( ttype != tt_nothing)
+        {
+            pushed_back = true;
+        }
+    }
+    
+    private int
+    next_piece()
+    {
+        ttype = ((Integer)pending_types.get ( pending_pos)).intValue();
+        sval = (String)pending_values.get ( pending_pos);
+        pending_pos++;
+        if ( pending_pos == pending_types.size())
+        {
+            pending_types.clear();
+            pending_values.clear();
+            pending_pos = 0;
+        }
+        return ttype;
+    }
+    
+    /**
+     * Split a word into runs of word characters and of other characters,
+     * queueing them as the next tokens
+     * 
+     * @param word the word read by the StreamTokenizer
+     * @return false if the word needs no splitting
+     */
+    private boolean
+    split_word ( String word)
+    {
+        int length = word.length();
+        int i = 0;
+        while ( i < length && word.charAt ( i) < 0x80)
+        {
+            i++;
+        }
+        if ( i == length)
+        {
+            return false; // all ASCII: classified by the table
+        }
+        boolean found_other = false;
+        for ( int j = i; j < length; )
+        {
+            int code_point = word.codePointAt ( j);
+            if ( code_point >= 0x80 && is_unicode_word_char ( code_point) == false)
+            {
+                found_other = true;
+                break;
+            }
+            j += Character.charCount ( code_point);
+        }
+        if ( found_other == false)
+        {
+            return false;
+        }
+        
+        int run_start = 0;
+        boolean run_is_word = true;
+        for ( int j = 0; j < length; )
+        {
+            int code_point = word.codePointAt ( j);
+            boolean is_word = code_point < 0x80 || is_unicode_word_char ( code_point);
+            if ( j > 0 && is_word != run_is_word)
+            {
+                queue_piece ( run_is_word, word.substring ( run_start, j));
+                run_start = j;
+            }
+            run_is_word = is_word;
+            j += Character.charCount ( code_point);
+        }
+        queue_piece ( run_is_word, word.substring ( run_start));
+        return true;
+    }
+    
+    private void
+    queue_piece ( boolean is_word, String value)
+    {
+        pending_types.add ( Integer.valueOf ( is_word ? TT_WORD : TT_SYMBOLS));
+        pending_values.add ( value);
     }
     
     /**
@@ -192,6 +403,8 @@ public class SyntaxTokenizer
         result.put ( tokenizer_slashSlashComments, "false");
         result.put ( tokenizer_slashStarComments, "false");
         result.put ( tokenizer_wordChars, "65-122");
+        result.put ( tokenizer_unicode, "true");
+        result.put ( tokenizer_unicodeWordChars, "L,M,Nd,Nl");
         
         return result;
     }
@@ -210,4 +423,41 @@ public class SyntaxTokenizer
     private static final String tokenizer_whitespaceChars = "tokenizer.whitespaceChars";
     private static final String tokenizer_wordChar = "tokenizer.wordChar";
     private static final String tokenizer_wordChars = "tokenizer.wordChars";
+    private static final String tokenizer_unicode = "tokenizer.unicode";
+    private static final String tokenizer_unicodeWordChars = "tokenizer.unicodeWordChars";
+    
+    // Unicode general category names, indexed by the values of Character.getType
+    private static final String[] category_names = new String[32];
+    static
+    {
+        category_names[Character.UPPERCASE_LETTER] = "Lu";
+        category_names[Character.LOWERCASE_LETTER] = "Ll";
+        category_names[Character.TITLECASE_LETTER] = "Lt";
+        category_names[Character.MODIFIER_LETTER] = "Lm";
+        category_names[Character.OTHER_LETTER] = "Lo";
+        category_names[Character.NON_SPACING_MARK] = "Mn";
+        category_names[Character.COMBINING_SPACING_MARK] = "Mc";
+        category_names[Character.ENCLOSING_MARK] = "Me";
+        category_names[Character.DECIMAL_DIGIT_NUMBER] = "Nd";
+        category_names[Character.LETTER_NUMBER] = "Nl";
+        category_names[Character.OTHER_NUMBER] = "No";
+        category_names[Character.CONNECTOR_PUNCTUATION] = "Pc";
+        category_names[Character.DASH_PUNCTUATION] = "Pd";
+        category_names[Character.START_PUNCTUATION] = "Ps";
+        category_names[Character.END_PUNCTUATION] = "Pe";
+        category_names[Character.INITIAL_QUOTE_PUNCTUATION] = "Pi";
+        category_names[Character.FINAL_QUOTE_PUNCTUATION] = "Pf";
+        category_names[Character.OTHER_PUNCTUATION] = "Po";
+        category_names[Character.MATH_SYMBOL] = "Sm";
+        category_names[Character.CURRENCY_SYMBOL] = "Sc";
+        category_names[Character.MODIFIER_SYMBOL] = "Sk";
+        category_names[Character.OTHER_SYMBOL] = "So";
+        category_names[Character.SPACE_SEPARATOR] = "Zs";
+        category_names[Character.LINE_SEPARATOR] = "Zl";
+        category_names[Character.PARAGRAPH_SEPARATOR] = "Zp";
+        category_names[Character.CONTROL] = "Cc";
+        category_names[Character.FORMAT] = "Cf";
+        category_names[Character.PRIVATE_USE] = "Co";
+        category_names[Character.SURROGATE] = "Cs";
+    }
 }
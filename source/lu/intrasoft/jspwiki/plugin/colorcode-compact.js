@@ -0,0 +1,73 @@
+/*
+ * colorcode-compact.js
+ *
+ * Expands the compact output of ColorCodePlugin (output='compact'): each
+ * pre.colorcode-compact element holds the code text, and in data-tokens
+ * the base64-encoded varint pairs (class, length) that split it into
+ * runs; class 0 is plain text, class n becomes <span class="tn">.
+ */
+(function ()
+{
+    function expand ( pre)
+    {
+        var bytes = atob ( pre.getAttribute ( "data-tokens"));
+        var text = pre.textContent;
+        var position = 0, offset = 0;
+        function varint ()
+        {
+            var value = 0, shift = 0, b;
+            do
+            {
+                b = bytes.charCodeAt ( position++);
+                value |= ( b & 0x7f) << shift;
+                shift += 7;
+            }
+            while ( b & 0x80);
+            return value;
+        }
+        var fragment = document.createDocumentFragment();
+        while ( position < bytes.length)
+        {
+            var token_class = varint ();
+            var length = varint ();
+            var run = document.createTextNode ( text.substr ( offset, length));
+            offset += length;
+            if ( token_class == 0)
+            {
+                fragment.appendChild ( run);
+            }
+            else
+            {
+                var span = document.createElement ( "span");
+                span.className = "t" + token_class;
+                span.appendChild ( run);
+                fragment.appendChild ( span);
+            }
+        }
+        if ( offset < text.length)
+        {
+            fragment.appendChild ( document.createTextNode ( text.substr ( offset)));
+        }
+        pre.textContent = "";
+        pre.appendChild ( fragment);
+        pre.removeAttribute ( "data-tokens");
+    }
+
+    function expand_all ()
+    {
+        var blocks = document.querySelectorAll ( "pre.colorcode-compact[data-tokens]");
+        for ( var i = 0; i < blocks.length; i++)
+        {
+            expand ( blocks[i]);
+        }
+    }
+
+    if ( document.readyState == "loading")
+    {
+        document.addEventListener ( "DOMContentLoaded", expand_all);
+    }
+    else
+    {
+        expand_all ();
+    }
+})();